@@ -0,0 +1,44 @@
+#!/bin/sh
+# Runs the sharded recipe catalog over several JVMs on this machine
+#
+# Compiles the sources, starts one ShardNode process per node on the loopback address,
+# runs ShardHarness against them (the last node is added while the catalog is in use)
+# and stops the nodes. The exit status is that of ShardHarness.
+#
+# Usage: scripts/shards.sh [nodes] [recipes]
+#   BASE_PORT  port of the first node, default 7400
+#   OUT        directory for the compiled classes, default out/shards
+
+set -e
+cd "$(dirname "$0")/.."
+
+NODES=${1:-3}
+RECIPES=${2:-2000}
+BASE_PORT=${BASE_PORT:-7400}
+OUT=${OUT:-out/shards}
+
+if [ "$NODES" -lt 2 ]; then
+    echo "At least two nodes are needed" >&2
+    exit 2
+fi
+
+mkdir -p "$OUT"
+javac -encoding UTF-8 -d "$OUT" $(find src -name '*.java')
+
+PIDS=""
+trap 'kill $PIDS 2>/dev/null || true' EXIT INT TERM
+
+ADDRESSES=""
+i=0
+while [ "$i" -lt "$NODES" ]; do
+    PORT=$((BASE_PORT + i))
+    java -cp "$OUT" com.samlinz.oom.shard.ShardNode "$PORT" > "$OUT/node-$PORT.log" 2>&1 &
+    PIDS="$PIDS $!"
+    ADDRESSES="$ADDRESSES 127.0.0.1:$PORT"
+    i=$((i + 1))
+done
+
+set +e
+java -cp "$OUT" com.samlinz.oom.ShardHarness "$RECIPES" $ADDRESSES
+STATUS=$?
+exit $STATUS
@@ -0,0 +1,484 @@
+package com.samlinz.oom;
+
+import com.samlinz.oom.recipe.ParallelStageShuffler;
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.recipe.RecipeCatalog;
+import com.samlinz.oom.recipe.RecipeFactory;
+import com.samlinz.oom.recipe.RecipeUtils;
+import com.samlinz.oom.recipe.StageOrderValidator;
+import com.samlinz.oom.stage.Stage;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Stress test of the recipe classes shared between threads
+ *
+ * Every scenario starts its threads at the same moment and has them hammer the same
+ * objects, then checks the invariants which must hold no matter how the threads
+ * interleaved:
+ * - ids:      RecipeFactory.getRecipe() gives unique ids and the catalog finds every recipe
+ * - snapshots: catalog snapshots show the catalog at one point in time while recipes are
+ *             added, removed and renumbered, and renumbering onto a used id is refused
+ * - stages:   addStage() and finish() on a shared recipe keep every stage and link it once
+ * - shuffle:  shuffleStages() of both shufflers on shared chain, join and chili recipes
+ *             leaves a valid order, also as seen by threads reading the stages meanwhile
+ * - logging:  CustomLogFormatter.format() gives well-formed lines with the right time
+ *
+ * Each scenario is repeated for the given amount of rounds, interleavings differ between
+ * rounds. A scenario which does not finish in time is reported as hung. The exit status
+ * is 1 if any scenario failed. New code which is meant to be used from many threads
+ * should add its scenario here.
+ *
+ * Usage: ConcurrencyStress [threads] [rounds]
+ *
+ * @author Samuel Lindqvist
+ */
+public class ConcurrencyStress {
+
+    private static final int DEFAULT_ROUNDS = 20;
+    // operations per thread in each round
+    private static final int RECIPES_PER_THREAD = 2000;
+    private static final int STAGES_PER_THREAD = 200;
+    private static final int SHUFFLES_PER_THREAD = 200;
+    private static final int RECORDS_PER_THREAD = 5000;
+    private static final int SNAPSHOTS_PER_THREAD = 200;
+    // time a single round may take
+    private static final long TIMEOUT_SECONDS = 60;
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private ConcurrencyStress() {
+    }
+
+    /**
+     * Work of a single thread, adds the broken invariants it notices to failures
+     */
+    private interface Worker {
+        void run(int thread, List<String> failures) throws Exception;
+    }
+
+    /**
+     * One round of a scenario: sets up the shared objects, gives the work of each thread
+     * and checks the outcome once all threads are done
+     */
+    private interface Scenario {
+        Round start(int threads);
+    }
+
+    private interface Round {
+        Worker worker();
+        void check(List<String> failures);
+    }
+
+    /**
+     * Application entry point
+     * @param args amount of threads and rounds, both optional
+     */
+    public static void main(String[] args) throws InterruptedException {
+        // the recipes log every change, keep only warnings
+        Logger globalLogger = Logger.getLogger("");
+        globalLogger.setLevel(Level.WARNING);
+        for (Handler handler : globalLogger.getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+
+        int threads = args.length > 0 ? Integer.parseInt(args[0])
+                : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        Map<String, Scenario> scenarios = new LinkedHashMap<>();
+        scenarios.put("ids", ConcurrencyStress::ids);
+        scenarios.put("snapshots", ConcurrencyStress::snapshots);
+        scenarios.put("stages", ConcurrencyStress::stages);
+        scenarios.put("shuffle", ConcurrencyStress::shuffle);
+        scenarios.put("logging", ConcurrencyStress::logging);
+
+        System.out.println("Running " + rounds + " rounds with " + threads + " threads");
+        boolean failed = false;
+        for (Map.Entry<String, Scenario> scenario : scenarios.entrySet()) {
+            List<String> failures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds && failures.isEmpty(); round++) {
+                runRound(scenario.getValue().start(threads), threads, failures);
+                // a scenario may register a catalog, also when it fails
+                RecipeFactory.setCatalog(null);
+                if (!failures.isEmpty()) failures.add(0, "round " + round);
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            if (failures.isEmpty()) {
+                System.out.println(scenario.getKey() + " ok in " + millis + " ms");
+            } else {
+                failed = true;
+                System.out.println(scenario.getKey() + " FAILED");
+                // the first failures are enough to tell what went wrong
+                for (String f : failures.subList(0, Math.min(failures.size(), 10))) {
+                    System.out.println("  " + f);
+                }
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Runs the workers of a round, released all at once, and checks the outcome
+     */
+    private static void runRound(Round round, int threads, List<String> failures) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, (r) -> {
+            Thread t = new Thread(r, "stress");
+            t.setDaemon(true);
+            return t;
+        });
+        CountDownLatch gate = new CountDownLatch(1);
+        ConcurrentLinkedQueue<String> found = new ConcurrentLinkedQueue<>();
+        Worker worker = round.worker();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(pool.submit((Callable<Void>) () -> {
+                List<String> own = new ArrayList<>();
+                gate.await();
+                worker.run(thread, own);
+                found.addAll(own);
+                return null;
+            }));
+        }
+        gate.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        try {
+            for (Future<?> f : futures) {
+                try {
+                    f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    found.add("thread threw " + e.getCause());
+                }
+            }
+        } catch (TimeoutException e) {
+            failures.add("hung, not finished in " + TIMEOUT_SECONDS + " s");
+            return;
+        } finally {
+            pool.shutdownNow();
+        }
+        failures.addAll(found);
+        if (failures.isEmpty()) round.check(failures);
+    }
+
+    /**
+     * Recipes created from many threads get unique ids and are all registered in the catalog
+     */
+    private static Round ids(int threads) {
+        RecipeCatalog catalog = new RecipeCatalog();
+        Map<Integer, Recipe> created = new ConcurrentHashMap<>();
+        RecipeFactory.setCatalog(catalog);
+        return new Round() {
+            @Override
+            public Worker worker() {
+                return (thread, failures) -> {
+                    for (int i = 0; i < RECIPES_PER_THREAD; i++) {
+                        Recipe r = RecipeFactory.getRecipe("Recipe " + thread + " " + i);
+                        Recipe other = created.putIfAbsent(r.getId(), r);
+                        if (other != null) failures.add("id " + r.getId() + " given to two recipes");
+                        if (catalog.get(r.getId()) != r) failures.add("recipe " + r.getId() + " not in the catalog");
+                    }
+                };
+            }
+
+            @Override
+            public void check(List<String> failures) {
+                int expected = threads * RECIPES_PER_THREAD;
+                if (created.size() != expected) failures.add(created.size() + " unique ids, expected " + expected);
+                if (catalog.size() != expected) failures.add(catalog.size() + " recipes in the catalog, expected " + expected);
+                int seen = 0;
+                try (RecipeCatalog.Snapshot snapshot = catalog.snapshot()) {
+                    for (Recipe r : snapshot) {
+                        if (created.get(r.getId()) != r) failures.add("snapshot has unknown recipe " + r.getId());
+                        seen++;
+                    }
+                }
+                if (seen != expected) failures.add(seen + " recipes in the snapshot, expected " + expected);
+                String prefix = "Recipe " + (threads - 1) + " ";
+                if (catalog.findByPrefix(prefix, Integer.MAX_VALUE).size() != RECIPES_PER_THREAD)
+                    failures.add("prefix search for \"" + prefix + "\" misses recipes");
+            }
+        };
+    }
+
+    /**
+     * Every thread adds and removes recipes of its own and renumbers one shared recipe back
+     * and forth, while taking snapshots of the catalog. A snapshot has to keep showing the
+     * same recipes, each once, including every recipe which was in the catalog throughout
+     */
+    private static Round snapshots(int threads) {
+        RecipeCatalog catalog = new RecipeCatalog();
+        RecipeFactory.setCatalog(catalog);
+        // renumbered back and forth but never removed
+        Recipe[] moving = new Recipe[threads];
+        // never changed, renumbering a recipe onto their ids has to be refused
+        Recipe[] fixed = new Recipe[threads];
+        for (int t = 0; t < threads; t++) {
+            moving[t] = RecipeFactory.getRecipe("Moving " + t);
+            fixed[t] = RecipeFactory.getRecipe("Fixed " + t);
+        }
+        return new Round() {
+            @Override
+            public Worker worker() {
+                return (thread, failures) -> {
+                    Recipe own = moving[thread];
+                    int home = own.getId();
+                    Recipe taken = fixed[(thread + 1) % threads];
+                    List<Recipe> present = new ArrayList<>();
+                    Set<Recipe> gone = new HashSet<>();
+                    for (int i = 0; i < SNAPSHOTS_PER_THREAD && failures.isEmpty(); i++) {
+                        for (int k = 0; k < 3; k++) present.add(RecipeFactory.getRecipe("Churn " + thread + " " + i));
+                        for (int k = 0; k < 2; k++) {
+                            Recipe r = present.remove(0);
+                            if (catalog.remove(r.getId()) != r) failures.add("removing " + r.getId() + " gave another recipe");
+                            gone.add(r);
+                        }
+                        // ids of the factory are not negative, so the other id is free
+                        own.setId(own.getId() == home ? -1 - home : home);
+                        int before = own.getId();
+                        try {
+                            own.setId(taken.getId());
+                            failures.add("renumbering onto the id of " + taken.getName() + " was not refused");
+                        } catch (IllegalStateException e) {
+                            // expected
+                        }
+                        if (own.getId() != before || catalog.get(before) != own || catalog.get(taken.getId()) != taken)
+                            failures.add("refused renumbering changed the catalog");
+
+                        try (RecipeCatalog.Snapshot snapshot = catalog.snapshot()) {
+                            Recipe removedAfter = present.remove(0);
+                            catalog.remove(removedAfter.getId());
+                            gone.add(removedAfter);
+                            Recipe addedAfter = RecipeFactory.getRecipe("Late " + thread + " " + i);
+
+                            List<Recipe> first = new ArrayList<>();
+                            for (Recipe r : snapshot) first.add(r);
+                            List<Recipe> second = new ArrayList<>();
+                            for (Recipe r : snapshot) second.add(r);
+                            if (!first.equals(second)) failures.add("snapshot changed between two iterations");
+                            Set<Recipe> seen = new HashSet<>();
+                            for (Recipe r : first) {
+                                if (!seen.add(r)) failures.add(r.getName() + " twice in a snapshot");
+                            }
+                            for (int t = 0; t < threads; t++) {
+                                if (!seen.contains(moving[t])) failures.add(moving[t].getName() + " missing from a snapshot");
+                                if (!seen.contains(fixed[t])) failures.add(fixed[t].getName() + " missing from a snapshot");
+                            }
+                            for (Recipe r : present) {
+                                if (!seen.contains(r)) failures.add("recipe " + r.getId() + " missing from a snapshot");
+                            }
+                            if (!seen.contains(removedAfter)) failures.add("recipe removed after the snapshot missing from it");
+                            if (seen.contains(addedAfter)) failures.add("recipe added after the snapshot in it");
+                            for (Recipe r : first) {
+                                if (gone.contains(r) && r != removedAfter) failures.add("removed recipe " + r.getId() + " in a snapshot");
+                            }
+                            present.add(addedAfter);
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void check(List<String> failures) {
+                int seen = 0;
+                try (RecipeCatalog.Snapshot snapshot = catalog.snapshot()) {
+                    for (Recipe r : snapshot) {
+                        if (catalog.get(r.getId()) != r) failures.add("snapshot has recipe " + r.getId() + " which is not in the catalog");
+                        seen++;
+                    }
+                }
+                if (seen != catalog.size()) failures.add(seen + " recipes in the snapshot, " + catalog.size() + " in the catalog");
+                for (int t = 0; t < threads; t++) {
+                    if (catalog.get(moving[t].getId()) != moving[t]) failures.add(moving[t].getName() + " not found by its id");
+                    if (catalog.get(fixed[t].getId()) != fixed[t]) failures.add(fixed[t].getName() + " not found by its id");
+                }
+            }
+        };
+    }
+
+    /**
+     * Every thread adds a chain of stages to the same recipe and then finishes it,
+     * the recipe must end up with every chain exactly once
+     */
+    private static Round stages(int threads) {
+        Recipe recipe = RecipeFactory.getRecipe("Shared stages");
+        return new Round() {
+            @Override
+            public Worker worker() {
+                return (thread, failures) -> {
+                    int first = thread * STAGES_PER_THREAD;
+                    recipe.addStage(first, "Stage " + first);
+                    for (int id = first + 1; id < first + STAGES_PER_THREAD; id++) {
+                        recipe.addStage(id, "Stage " + id, id - 1);
+                    }
+                    recipe.finish();
+                };
+            }
+
+            @Override
+            public void check(List<String> failures) {
+                checkChains(recipe, recipe.getStages(), threads, failures);
+            }
+        };
+    }
+
+    /**
+     * Checks that the stages are the chains added by the stages scenario, each linked once
+     */
+    private static void checkChains(Recipe recipe, List<Stage> stages, int threads, List<String> failures) {
+        int expected = threads * STAGES_PER_THREAD;
+        if (stages.size() != expected) {
+            failures.add(stages.size() + " stages, expected " + expected);
+            return;
+        }
+        Map<Integer, Stage> byId = new HashMap<>();
+        for (Stage s : stages) {
+            if (byId.put(s.getId(), s) != null) failures.add("stage " + s.getId() + " appears twice");
+        }
+        for (Stage s : stages) {
+            boolean first = s.getId() % STAGES_PER_THREAD == 0;
+            boolean last = s.getId() % STAGES_PER_THREAD == STAGES_PER_THREAD - 1;
+            Stage parent = byId.get(s.getId() - 1);
+            Stage child = byId.get(s.getId() + 1);
+            if (first ? !s.getParents().isEmpty() : s.getParents().size() != 1 || s.getParents().get(0) != parent)
+                failures.add("stage " + s.getId() + " has parents " + s.getParents());
+            if (last ? !s.getChildren().isEmpty() : s.getChildren().size() != 1 || s.getChildren().get(0) != child)
+                failures.add("stage " + s.getId() + " has " + s.getChildren().size() + " children");
+        }
+        if (failures.isEmpty()) {
+            StageOrderValidator.Violation violation = StageOrderValidator.validate(recipe, stages);
+            if (violation != null) failures.add("invalid order: " + violation);
+        }
+    }
+
+    /**
+     * Every thread shuffles the same recipes over and over, taking turns with the two
+     * shufflers, and checks the stages it sees in between
+     */
+    private static Round shuffle(int threads) {
+        Recipe chili = CustomerTest.chiliSinCarne();
+        Recipe chains = RecipeFactory.getRecipe("Shared chains");
+        for (int t = 0; t < threads; t++) {
+            int first = t * STAGES_PER_THREAD;
+            chains.addStage(first, "Stage " + first);
+            for (int id = first + 1; id < first + STAGES_PER_THREAD; id++) {
+                chains.addStage(id, "Stage " + id, id - 1);
+            }
+        }
+        chains.finish();
+        // per thread two roots joined into a short tail, all tails joined at the end
+        Recipe joins = RecipeFactory.getRecipe("Shared joins");
+        int[] tails = new int[threads];
+        for (int t = 0; t < threads; t++) {
+            int first = t * 5;
+            joins.addStage(first, "Root " + first)
+                    .addStage(first + 1, "Root " + (first + 1))
+                    .addStage(first + 2, "Join " + (first + 2), first, first + 1)
+                    .addStage(first + 3, "Tail " + (first + 3), first + 2)
+                    .addStage(first + 4, "Tail " + (first + 4), first + 3);
+            tails[t] = first + 4;
+        }
+        joins.addStage(threads * 5, "Final", tails).finish();
+        Map<Recipe, Set<Stage>> originals = new HashMap<>();
+        for (Recipe r : new Recipe[] { chili, chains, joins }) originals.put(r, new HashSet<>(r.getStages()));
+
+        return new Round() {
+            @Override
+            public Worker worker() {
+                return (thread, failures) -> {
+                    SplittableRandom rng = new SplittableRandom(thread);
+                    for (int i = 0; i < SHUFFLES_PER_THREAD && failures.isEmpty(); i++) {
+                        for (Recipe r : originals.keySet()) {
+                            if ((thread + i) % 2 == 0) {
+                                RecipeUtils.shuffleStages(r);
+                            } else {
+                                ParallelStageShuffler.shuffleStages(r, ForkJoinPool.commonPool(), rng.split());
+                            }
+                            checkOrder(r, r.getStages(), originals.get(r), failures);
+                        }
+                        checkChains(chains, chains.getStages(), threads, failures);
+                    }
+                };
+            }
+
+            @Override
+            public void check(List<String> failures) {
+                for (Map.Entry<Recipe, Set<Stage>> e : originals.entrySet()) {
+                    checkOrder(e.getKey(), e.getKey().getStages(), e.getValue(), failures);
+                }
+                checkChains(chains, chains.getStages(), threads, failures);
+            }
+        };
+    }
+
+    /**
+     * Checks that the stages are the original ones in an order which respects the dependencies
+     */
+    private static void checkOrder(Recipe recipe, List<Stage> seen, Set<Stage> original, List<String> failures) {
+        if (seen.size() != original.size() || !original.containsAll(seen)) {
+            failures.add(recipe.getName() + " has " + seen.size() + " stages, expected the "
+                    + original.size() + " original ones");
+            return;
+        }
+        StageOrderValidator.Violation violation = StageOrderValidator.validate(recipe, seen);
+        if (violation != null) failures.add("invalid order of " + recipe.getName() + ": " + violation);
+    }
+
+    /**
+     * Every thread formats log records with the same formatter, each line must have
+     * the time of its record and its own message
+     */
+    private static Round logging(int threads) {
+        CustomLogFormatter formatter = new CustomLogFormatter();
+        return new Round() {
+            @Override
+            public Worker worker() {
+                return (thread, failures) -> {
+                    // a formatter of its own for the expected lines
+                    SimpleDateFormat expectedTime = new SimpleDateFormat("HH:mm:ss.SSS");
+                    Set<String> malformed = new HashSet<>();
+                    for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                        LogRecord record = new LogRecord(i % 2 == 0 ? Level.INFO : Level.FINE, "message " + thread + " " + i);
+                        String line = formatter.format(record);
+                        String expected = expectedTime.format(new Date(record.getMillis())) + " "
+                                + record.getLevel() + " - " + record.getMessage() + "\n";
+                        if (!line.equals(expected) && malformed.size() < 3) {
+                            malformed.add(line.trim());
+                            failures.add("line \"" + line.trim() + "\", expected \"" + expected.trim() + "\"");
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void check(List<String> failures) {
+            }
+        };
+    }
+}
@@ -1,24 +1,28 @@
 package com.samlinz.oom;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
 /**
  * Custom log message formatter for improved readability
  * Default one is a cluttered mess
+ * Handlers may format records from many threads at once, so the formatter is immutable
  * Created by samlinz on 24.11.2016.
  */
 public class CustomLogFormatter extends Formatter {
 
     // HOURS MINUTES SECONDS MILLISECONDS
-    private static SimpleDateFormat dFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    private static final DateTimeFormatter dFormat =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
 
     @Override
     public String format(LogRecord logRecord) {
         StringBuilder str = new StringBuilder();
-        str.append(dFormat.format(new Date()));
+        // time of the event, not of the formatting
+        str.append(dFormat.format(Instant.ofEpochMilli(logRecord.getMillis())));
         str.append(" " + logRecord.getLevel() + " - " + logRecord.getMessage());
         str.append("\n");
         return str.toString();
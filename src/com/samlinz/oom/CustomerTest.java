@@ -3,6 +3,7 @@ package com.samlinz.oom;
 import com.samlinz.oom.recipe.Recipe;
 import com.samlinz.oom.recipe.RecipeFactory;
 import com.samlinz.oom.recipe.RecipeUtils;
+import com.samlinz.oom.recipe.StageOrderValidator;
 
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -37,34 +38,7 @@ public class CustomerTest {
         globalLogger.addHandler(customHandler);
 
         // create a test recipe
-        Recipe chiliConCarne = RecipeFactory.getRecipe("Chili sin carne")
-                .addIngredients(
-                        "1 kpl, iso sipuli",
-                        "1-2kpl valkosipulinkynsi",
-                        "1 kpl paprika",
-                        "2 dl tumma soijarouhe",
-                        "1 tlk tomaattimurska",
-                        "3 dl vesi",
-                        "1 tlk kidneypapu",
-                        "0.5 tl suola",
-                        "tilkka öljyä",
-                        "hyppysellinen chiliä",
-                        "persiljaa koristeeksi"
-                )
-                .addStage(1, "hienonna valkosipuli")
-                .addStage(2, "hienonna sipuli", 1)
-                .addStage(3, "kullota sipulit öljyssä", 2)
-                .addStage(4, "lisää soijarouhe, tomaattimurska ja vesi", 3)
-                .addStage(5, "keitä 5min", 4)
-                .addStage(6, "suikaloi paprika")
-                .addStage(7, "huuhdo ja valuta pavut")
-                .addStage(8, "lisää paprika, pavut ja chili", 5, 6, 7)
-                .addStage(9, "hauduta 5min", 8)
-                .addStage(9, "mausta suolalla", 9)
-                .addStage(10, "ripottele päälle persiljaa", 9)
-                .addStage(11, "keitä riisi tai peruna")
-                .addStage(12, "tarjoile", 10, 11)
-                .finish();
+        Recipe chiliConCarne = chiliSinCarne();
 
         System.out.println("\nThe original ingredients: ");
         Thread.sleep(5);
@@ -82,6 +56,12 @@ public class CustomerTest {
         // shuffle stages while keeping them in consistent order
         RecipeUtils.shuffleStages(chiliConCarne);
 
+        // make sure the new order still respects every dependency
+        StageOrderValidator.Violation violation =
+                StageOrderValidator.validate(chiliConCarne, chiliConCarne.getStages());
+        if (violation != null) {
+            System.out.println("\nShuffled order is invalid: " + violation);
+        }
 
         System.out.println("\nThe new ingredient list:");
         Thread.sleep(5);
@@ -93,4 +73,41 @@ public class CustomerTest {
         // output the initial stages in the order they were given
         RecipeUtils.outputRecipeStages(chiliConCarne, System.out);
     }
+
+    /**
+     * Builds the test recipe, also used as a reference recipe by ShuffleHarness
+     * @.pre true
+     * @.post RESULT is finished
+     * @return a new chili recipe
+     */
+    static Recipe chiliSinCarne() {
+        return RecipeFactory.getRecipe("Chili sin carne")
+                .addIngredients(
+                        "1 kpl, iso sipuli",
+                        "1-2kpl valkosipulinkynsi",
+                        "1 kpl paprika",
+                        "2 dl tumma soijarouhe",
+                        "1 tlk tomaattimurska",
+                        "3 dl vesi",
+                        "1 tlk kidneypapu",
+                        "0.5 tl suola",
+                        "tilkka öljyä",
+                        "hyppysellinen chiliä",
+                        "persiljaa koristeeksi"
+                )
+                .addStage(1, "hienonna valkosipuli")
+                .addStage(2, "hienonna sipuli", 1)
+                .addStage(3, "kullota sipulit öljyssä", 2)
+                .addStage(4, "lisää soijarouhe, tomaattimurska ja vesi", 3)
+                .addStage(5, "keitä 5min", 4)
+                .addStage(6, "suikaloi paprika")
+                .addStage(7, "huuhdo ja valuta pavut")
+                .addStage(8, "lisää paprika, pavut ja chili", 5, 6, 7)
+                .addStage(9, "hauduta 5min", 8)
+                .addStage(9, "mausta suolalla", 9)
+                .addStage(10, "ripottele päälle persiljaa", 9)
+                .addStage(11, "keitä riisi tai peruna")
+                .addStage(12, "tarjoile", 10, 11)
+                .finish();
+    }
 }
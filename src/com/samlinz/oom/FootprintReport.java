@@ -0,0 +1,188 @@
+package com.samlinz.oom;
+
+import com.samlinz.oom.offheap.OffHeapRecipeStore;
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.recipe.RecipeBuilder;
+import com.samlinz.oom.recipe.RecipeFactory;
+import com.samlinz.oom.stage.Stage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports the memory taken by recipes
+ *
+ * Builds the same amount of recipes in several ways, keeps them reachable and measures
+ * how much the used heap grew, after collecting garbage until the figure settles. The
+ * figures are estimates, but they are stable enough to compare before and after a change
+ * of the object layout. The off-heap store is measured by its own byte count.
+ *
+ * Also counts how the link lists of the stages are represented, since most stages have
+ * at most one parent and one child and share the empty list or hold a singleton.
+ *
+ * Prints a report of "key value" lines, and writes it to the report file if one is given.
+ *
+ * Usage: FootprintReport [recipes] [report file]
+ *
+ * @author Samuel Lindqvist
+ */
+public class FootprintReport {
+
+    private static final int DEFAULT_RECIPES = 20000;
+    // stages of a recipe built by the builder and the fluent API
+    private static final int STAGES = 12;
+    // rounds of collection before the used heap is read
+    private static final int GC_ROUNDS = 5;
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private FootprintReport() {
+    }
+
+    /**
+     * Application entry point
+     * @param args amount of recipes and report file, both optional
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // the recipes log every change, keep only warnings
+        Logger globalLogger = Logger.getLogger("");
+        globalLogger.setLevel(Level.WARNING);
+        for (Handler handler : globalLogger.getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RECIPES;
+        String reportFile = args.length > 1 ? args[1] : null;
+
+        Map<String, String> report = new TreeMap<>();
+        report.put("recipes", String.valueOf(count));
+        report.put("java.version", System.getProperty("java.version"));
+
+        measure("empty", count, (i) -> RecipeFactory.getRecipe("Recipe " + i), report);
+        measure("chili", count, (i) -> CustomerTest.chiliSinCarne(), report);
+        measure("fluent", count, FootprintReport::fluent, report);
+        RecipeBuilder builder = new RecipeBuilder();
+        measure("builder", count, (i) -> built(builder, i), report);
+
+        OffHeapRecipeStore store = new OffHeapRecipeStore();
+        for (int i = 0; i < count; i++) store.add(built(builder, i));
+        report.put("offheap.bytesPerRecipe", String.format("%.1f", store.getUsedBytes() / (double) count));
+
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<String, String> e : report.entrySet()) {
+            str.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        System.out.print(str);
+        if (reportFile != null) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(reportFile), StandardCharsets.UTF_8)) {
+                out.write(str.toString());
+            }
+        }
+    }
+
+    /**
+     * Builds the recipes, keeping them reachable, and reports the heap they take
+     */
+    private static void measure(String name, int count, IntFunction<Recipe> make, Map<String, String> report)
+            throws InterruptedException {
+        List<Recipe> kept = new ArrayList<>(count);
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) kept.add(make.apply(i));
+        long after = usedHeap();
+
+        long stages = 0;
+        int[] parents = new int[3];
+        int[] children = new int[3];
+        for (Recipe r : kept) {
+            stages += r.getStages().size();
+            for (Stage s : r.getStages()) {
+                parents[kind(s.getParents())]++;
+                children[kind(s.getChildren())]++;
+            }
+        }
+        double bytes = after - before;
+        report.put(name + ".bytesPerRecipe", String.format("%.1f", bytes / count));
+        if (stages > 0) {
+            report.put(name + ".bytesPerStage", String.format("%.1f", bytes / stages));
+            report.put(name + ".parents.empty", String.valueOf(parents[0]));
+            report.put(name + ".parents.singleton", String.valueOf(parents[1]));
+            report.put(name + ".parents.list", String.valueOf(parents[2]));
+            report.put(name + ".children.empty", String.valueOf(children[0]));
+            report.put(name + ".children.singleton", String.valueOf(children[1]));
+            report.put(name + ".children.list", String.valueOf(children[2]));
+        }
+    }
+
+    /**
+     * @return 0 for the shared empty list, 1 for a singleton, 2 for a list of its own
+     */
+    private static int kind(List<Stage> links) {
+        if (links == Collections.<Stage>emptyList()) return 0;
+        if (links.size() == 1 && !(links instanceof ArrayList)) return 1;
+        return 2;
+    }
+
+    /**
+     * A chain of stages with a join in the middle, built stage by stage
+     */
+    private static Recipe fluent(int n) {
+        Recipe r = RecipeFactory.getRecipe("Fluent " + n).addIngredients("water", "salt", "flour " + n);
+        r.addStage(1, "Stage 1 of " + n).addStage(2, "Stage 2 of " + n);
+        r.addStage(3, "Join of " + n, 1, 2);
+        for (int s = 4; s <= STAGES; s++) r.addStage(s, "Stage " + s + " of " + n, s - 1);
+        return r.finish();
+    }
+
+    /**
+     * The same recipe as fluent(), built in one pass
+     */
+    private static Recipe built(RecipeBuilder builder, int n) {
+        int[] ids = new int[STAGES];
+        String[] descriptions = new String[STAGES];
+        int[] depOffsets = new int[STAGES + 1];
+        int[] depIds = new int[STAGES];
+        int edges = 0;
+        for (int s = 1; s <= STAGES; s++) {
+            ids[s - 1] = s;
+            descriptions[s - 1] = s == 3 ? "Join of " + n : "Stage " + s + " of " + n;
+            if (s == 3) {
+                depIds[edges++] = 1;
+                depIds[edges++] = 2;
+            } else if (s > 3) {
+                depIds[edges++] = s - 1;
+            }
+            depOffsets[s] = edges;
+        }
+        return builder.build("Built " + n, new String[] { "water", "salt", "flour " + n },
+                STAGES, ids, descriptions, depOffsets, depIds);
+    }
+
+    /**
+     * Used heap after collecting garbage until the figure stops shrinking
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) break;
+            used = now;
+        }
+        return used;
+    }
+}
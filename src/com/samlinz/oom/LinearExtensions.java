@@ -0,0 +1,165 @@
+package com.samlinz.oom;
+
+import com.samlinz.oom.stage.Stage;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Exact facts about the valid stage orders of a small recipe
+ *
+ * A valid order of the stages is a linear extension of the dependency graph. The
+ * extensions are counted with dynamic programming over the sets of stages which can be
+ * done first (downsets), which makes it possible to number each extension, to sample
+ * them uniformly and to tell how likely each stage is at each position in a uniformly
+ * random order. The work grows with 2^n, so only small recipes are supported.
+ *
+ * @author Samuel Lindqvist
+ */
+class LinearExtensions {
+
+    // largest supported amount of stages
+    static final int MAX_STAGES = 20;
+
+    private final int n;
+    private final Map<Stage, Integer> indices;
+    // bits of the parents of each stage
+    private final int[] parentMasks;
+    // ways to order the stages of a downset, 0 for sets which are not downsets
+    private final long[] prefix;
+    // ways to order the remaining stages after a downset
+    private final long[] suffix;
+
+    /**
+     * Constructor, counts the extensions
+     * @.pre stages != null & stages.size() <= MAX_STAGES & every parent belongs to stages
+     * @.post count() > 0 unless the stages contain a cycle
+     * @param stages stages of the recipe
+     */
+    LinearExtensions(List<Stage> stages) {
+        n = stages.size();
+        if (n > MAX_STAGES) throw new IllegalArgumentException(n + " stages, at most " + MAX_STAGES + " supported");
+        indices = new IdentityHashMap<>(n);
+        for (int i = 0; i < n; i++) indices.put(stages.get(i), i);
+        parentMasks = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (Stage p : stages.get(i).getParents()) {
+                Integer idx = indices.get(p);
+                if (idx == null) throw new IllegalArgumentException("Stage " + stages.get(i).getId() + " depends on a stage outside the list");
+                parentMasks[i] |= 1 << idx;
+            }
+        }
+
+        int full = (1 << n) - 1;
+        prefix = new long[1 << n];
+        prefix[0] = 1;
+        // a superset is always numerically larger than its subsets
+        for (int mask = 0; mask < full; mask++) {
+            if (prefix[mask] == 0) continue;
+            for (int s = 0; s < n; s++) {
+                if (addable(mask, s)) prefix[mask | 1 << s] += prefix[mask];
+            }
+        }
+        suffix = new long[1 << n];
+        suffix[full] = 1;
+        for (int mask = full - 1; mask >= 0; mask--) {
+            if (prefix[mask] == 0) continue;
+            long ways = 0;
+            for (int s = 0; s < n; s++) {
+                if (addable(mask, s)) ways += suffix[mask | 1 << s];
+            }
+            suffix[mask] = ways;
+        }
+    }
+
+    private boolean addable(int mask, int s) {
+        return (mask & 1 << s) == 0 && (parentMasks[s] & ~mask) == 0;
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of valid orders
+     */
+    long count() {
+        return suffix[0];
+    }
+
+    /**
+     * Numbers a valid order, the numbers follow the lexicographic order of the stage indices
+     * @.pre order != null
+     * @.post RESULT == -1 | 0 <= RESULT < count()
+     * @param order stages in some order
+     * @return number of the order, -1 if it is not a valid order of the stages
+     */
+    long rank(List<Stage> order) {
+        if (order.size() != n) return -1;
+        int mask = 0;
+        long rank = 0;
+        for (Stage stage : order) {
+            Integer idx = indices.get(stage);
+            if (idx == null || !addable(mask, idx)) return -1;
+            for (int s = 0; s < idx; s++) {
+                if (addable(mask, s)) rank += suffix[mask | 1 << s];
+            }
+            mask |= 1 << idx;
+        }
+        return rank;
+    }
+
+    /**
+     * Picks a valid order, every valid order is equally likely
+     * @.pre rng != null & count() > 0
+     * @.post rank(RESULT) >= 0
+     * @param rng source of randomness
+     * @return stage indices in the picked order
+     */
+    int[] sample(SplittableRandom rng) {
+        int[] order = new int[n];
+        int mask = 0;
+        for (int pos = 0; pos < n; pos++) {
+            long r = rng.nextLong(suffix[mask]);
+            int s = 0;
+            for (; s < n; s++) {
+                if (!addable(mask, s)) continue;
+                r -= suffix[mask | 1 << s];
+                if (r < 0) break;
+            }
+            order[pos] = s;
+            mask |= 1 << s;
+        }
+        return order;
+    }
+
+    /**
+     * Probability of each stage to be at each position in a uniformly random valid order
+     * @.pre count() > 0
+     * @.post FORALL(s; SUM(RESULT[s]) == 1)
+     * @return probabilities by stage index and position
+     */
+    double[][] positionProbabilities() {
+        double[][] p = new double[n][n];
+        double total = count();
+        for (int mask = 0; mask < (1 << n) - 1; mask++) {
+            if (prefix[mask] == 0) continue;
+            int pos = Integer.bitCount(mask);
+            for (int s = 0; s < n; s++) {
+                if (addable(mask, s)) p[s][pos] += prefix[mask] * (double) suffix[mask | 1 << s] / total;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT == -1 | 0 <= RESULT < stage count
+     * @param stage a stage
+     * @return index of the stage in the list given to the constructor, -1 if not there
+     */
+    int indexOf(Stage stage) {
+        Integer idx = indices.get(stage);
+        return idx == null ? -1 : idx;
+    }
+}
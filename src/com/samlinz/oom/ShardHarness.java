@@ -0,0 +1,173 @@
+package com.samlinz.oom;
+
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.recipe.RecipeFactory;
+import com.samlinz.oom.recipe.RecipeText;
+import com.samlinz.oom.recipe.RecipeUtils;
+import com.samlinz.oom.shard.ShardedCatalog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a ShardedCatalog against ShardNode processes and checks what it serves
+ *
+ * The recipes are stored in the first nodes, then the last node is added while the
+ * catalog is in use. Before and after adding it, every recipe has to come back with
+ * the same text, and the batched variants have to equal both the single variants and
+ * the ones rendered locally. Start the nodes first, scripts/shards.sh does it all.
+ *
+ * Prints a report of "key value" lines, the exit status is 1 if a check failed.
+ *
+ * Usage: ShardHarness recipes node node... (nodes as host:port, the last one is added)
+ *
+ * @author Samuel Lindqvist
+ */
+public class ShardHarness {
+
+    private static final long SEED = 42;
+    // time to wait for the nodes to start listening
+    private static final long STARTUP_MILLIS = 30000;
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private ShardHarness() {
+    }
+
+    /**
+     * Application entry point
+     * @param args amount of recipes and the node addresses
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: ShardHarness recipes node node...");
+            System.exit(2);
+        }
+        Logger globalLogger = Logger.getLogger("");
+        globalLogger.setLevel(Level.WARNING);
+        for (Handler handler : globalLogger.getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+
+        int count = Integer.parseInt(args[0]);
+        List<String> nodes = Arrays.asList(args).subList(1, args.length);
+        for (String node : nodes) waitFor(node);
+        String added = nodes.get(nodes.size() - 1);
+
+        List<Recipe> recipes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) recipes.add(recipe(i));
+        List<Integer> ids = new ArrayList<>(count);
+        for (Recipe r : recipes) ids.add(r.getId());
+
+        Map<String, String> report = new TreeMap<>();
+        List<String> failures = new ArrayList<>();
+        try (ShardedCatalog catalog = new ShardedCatalog(nodes.subList(0, nodes.size() - 1))) {
+            long start = System.nanoTime();
+            for (Recipe r : recipes) catalog.put(r);
+            report.put("put.millis", String.valueOf((System.nanoTime() - start) / 1000000));
+
+            check("before", catalog, recipes, ids, report, failures);
+            start = System.nanoTime();
+            int moved = catalog.addNode(added);
+            report.put("addNode.millis", String.valueOf((System.nanoTime() - start) / 1000000));
+            report.put("addNode.moved", String.valueOf(moved));
+            if (moved == 0) failures.add("adding " + added + " moved no recipes");
+            check("after", catalog, recipes, ids, report, failures);
+        }
+
+        report.put("recipes", String.valueOf(count));
+        report.put("nodes", String.valueOf(nodes.size()));
+        report.put("failures", String.valueOf(failures.size()));
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<String, String> e : report.entrySet()) {
+            str.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (String f : failures) str.append("FAILED ").append(f).append('\n');
+        System.out.print(str);
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Checks that the catalog serves every recipe and its variants as they are locally
+     */
+    private static void check(String phase, ShardedCatalog catalog, List<Recipe> recipes, List<Integer> ids,
+                              Map<String, String> report, List<String> failures) throws IOException {
+        for (Recipe r : recipes) {
+            Recipe copy = catalog.get(r.getId());
+            if (copy == null) {
+                failures.add(phase + ": recipe " + r.getId() + " is missing");
+            } else if (copy.getId() != r.getId() || !text(copy).equals(text(r))) {
+                failures.add(phase + ": recipe " + r.getId() + " came back different");
+            }
+        }
+
+        long start = System.nanoTime();
+        Map<Integer, byte[]> variants = catalog.variants(ids, SEED);
+        report.put(phase + ".variants.millis", String.valueOf((System.nanoTime() - start) / 1000000));
+        if (variants.size() != recipes.size())
+            failures.add(phase + ": " + variants.size() + " variants for " + recipes.size() + " recipes");
+        for (Recipe r : recipes) {
+            byte[] batched = variants.get(r.getId());
+            if (batched == null) continue;
+            if (!Arrays.equals(batched, RecipeUtils.renderVariant(r, SEED)))
+                failures.add(phase + ": batched variant of " + r.getId() + " differs from the local one");
+        }
+        // single requests, for a sample of the recipes
+        for (int i = 0; i < recipes.size(); i += Math.max(1, recipes.size() / 100)) {
+            int id = recipes.get(i).getId();
+            if (!Arrays.equals(catalog.variant(id, SEED), variants.get(id)))
+                failures.add(phase + ": single variant of " + id + " differs from the batched one");
+        }
+    }
+
+    /**
+     * A recipe of a few stages which join, varying with the number
+     */
+    private static Recipe recipe(int n) {
+        Recipe r = RecipeFactory.getRecipe("Recipe " + n)
+                .addIngredients("water", "salt " + n, "flour " + (n % 7));
+        int roots = 1 + n % 3;
+        for (int s = 1; s <= roots; s++) r.addStage(s, "prepare " + s + " of " + n);
+        int[] all = new int[roots];
+        for (int s = 0; s < roots; s++) all[s] = s + 1;
+        r.addStage(roots + 1, "combine " + n, all);
+        r.addStage(roots + 2, "serve " + n, roots + 1);
+        return r.finish();
+    }
+
+    private static String text(Recipe recipe) {
+        StringBuilder str = new StringBuilder();
+        RecipeText.format(recipe, str);
+        return str.toString();
+    }
+
+    /**
+     * Waits until the node accepts connections
+     */
+    private static void waitFor(String node) throws IOException, InterruptedException {
+        int colon = node.lastIndexOf(':');
+        InetSocketAddress address = new InetSocketAddress(node.substring(0, colon),
+                Integer.parseInt(node.substring(colon + 1)));
+        long deadline = System.currentTimeMillis() + STARTUP_MILLIS;
+        while (true) {
+            try (Socket s = new Socket()) {
+                s.connect(address, 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+}
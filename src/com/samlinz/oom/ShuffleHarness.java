@@ -0,0 +1,412 @@
+package com.samlinz.oom;
+
+import com.samlinz.oom.offheap.OffHeapRecipeStore;
+import com.samlinz.oom.offheap.RecipeView;
+import com.samlinz.oom.recipe.ParallelStageShuffler;
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.recipe.RecipeFactory;
+import com.samlinz.oom.recipe.RecipeUtils;
+import com.samlinz.oom.recipe.StageOrderValidator;
+import com.samlinz.oom.stage.Stage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the speed and the fairness of the stage shuffling strategies
+ *
+ * Every strategy shuffles each recipe of a reference corpus, which includes the chili
+ * recipe of CustomerTest, many times over. For each run the harness reports:
+ * - orders per second, counting only the time spent in the strategy
+ * - orders which break a dependency, drop or repeat a stage, or throw
+ * - for recipes small enough to count their valid orders exactly, the chi-square test and
+ *   the Kullback-Leibler divergence of the observed orders against the uniform distribution
+ *   over all valid orders, and how far each stage's position distribution is from the
+ *   uniform one
+ *
+ * The "exact" strategy samples the valid orders uniformly, it is the control which
+ * shows what an unbiased strategy scores with the same amount of samples.
+ *
+ * The report has one "key value" line per figure, sorted by key, so that reports of two
+ * versions can be compared with diff. A run which does not finish in time is reported as
+ * a timeout and interrupted, sampling stops at the next order. If a single order never
+ * finishes the thread keeps running and takes CPU time from the later runs, so the report
+ * then names the run in "skewedBy" and the later throughput figures are not comparable.
+ *
+ * Usage: ShuffleHarness [samples] [report file] [strategy,strategy...]
+ *
+ * @author Samuel Lindqvist
+ */
+public class ShuffleHarness {
+
+    // fixed seed, so that consecutive reports differ only by the code
+    private static final long SEED = 20161125L;
+    private static final int DEFAULT_SAMPLES = 1_000_000;
+    // recipes too large for the exact statistics are only timed, with fewer samples
+    private static final int LARGE_SAMPLE_DIVISOR = 1000;
+    // time a single strategy may spend on a single recipe
+    private static final long TIMEOUT_MILLIS = 120_000;
+    // time a timed out run is given to notice the interrupt
+    private static final long STOP_MILLIS = 5_000;
+    // p-value below which the observed orders are reported as biased
+    private static final double BIAS_P_VALUE = 0.001;
+    // largest amount of valid orders which are counted one by one
+    private static final long MAX_CELLS = 1 << 24;
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private ShuffleHarness() {
+    }
+
+    /**
+     * Shuffles the stages of one recipe, one order per call
+     */
+    private interface Sampler {
+        List<Stage> next();
+    }
+
+    /**
+     * Prepares shuffling a recipe, returns null if the strategy does not support it
+     * The recipe must be left as it was
+     */
+    private interface Strategy {
+        Sampler prepare(Recipe recipe, long seed);
+    }
+
+    /**
+     * Application entry point
+     * @param args amount of samples, report file and strategies, all optional
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // the strategies log every shuffle, keep only warnings
+        Logger globalLogger = Logger.getLogger("");
+        globalLogger.setLevel(Level.WARNING);
+        for (Handler handler : globalLogger.getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SAMPLES;
+        String reportFile = args.length > 1 ? args[1] : null;
+        Map<String, Strategy> strategies = strategies();
+        if (args.length > 2) {
+            strategies.keySet().retainAll(Arrays.asList(args[2].split(",")));
+        }
+
+        Map<String, String> report = new TreeMap<>();
+        report.put("samples", String.valueOf(samples));
+        report.put("java.version", System.getProperty("java.version"));
+        for (Map.Entry<String, Recipe> dag : corpus().entrySet()) {
+            Recipe recipe = dag.getValue();
+            List<Stage> stages = new ArrayList<>(recipe.getStages());
+            LinearExtensions ext = stages.size() <= LinearExtensions.MAX_STAGES ? new LinearExtensions(stages) : null;
+            describe(dag.getKey(), stages, ext, report);
+            int runSamples = ext != null ? samples : Math.max(1, samples / LARGE_SAMPLE_DIVISOR);
+            for (Map.Entry<String, Strategy> strategy : strategies.entrySet()) {
+                String key = dag.getKey() + "." + strategy.getKey();
+                System.out.println("Running " + key);
+                // keys are unique per run, except for skewedBy which lists every stuck run
+                measureWithTimeout(key, recipe, stages, ext, strategy.getValue(), runSamples)
+                        .forEach((k, v) -> report.merge(k, v, (a, b) -> a + "," + b));
+            }
+        }
+
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<String, String> e : report.entrySet()) {
+            str.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        System.out.print(str);
+        if (reportFile != null) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(reportFile), StandardCharsets.UTF_8)) {
+                out.write(str.toString());
+            }
+        }
+    }
+
+    /**
+     * The strategies by name, in the order they are run
+     */
+    private static Map<String, Strategy> strategies() {
+        Map<String, Strategy> strategies = new LinkedHashMap<>();
+        strategies.put("utils", (recipe, seed) -> {
+            Random rng = new Random(seed);
+            return () -> RecipeUtils.getShuffledStages(recipe, rng);
+        });
+        strategies.put("parallel", (recipe, seed) -> {
+            SplittableRandom rng = new SplittableRandom(seed);
+            List<Stage> original = recipe.getStages();
+            return () -> {
+                ParallelStageShuffler.shuffleStages(recipe, ForkJoinPool.commonPool(), rng);
+                List<Stage> order = recipe.getStages();
+                recipe.setStages(original);
+                return order;
+            };
+        });
+        strategies.put("offheap", (recipe, seed) -> {
+            OffHeapRecipeStore store = new OffHeapRecipeStore();
+            RecipeView view = store.add(recipe);
+            List<Stage> stages = new ArrayList<>(recipe.getStages());
+            SplittableRandom rng = new SplittableRandom(seed);
+            return () -> byIndex(stages, store.shuffledStages(view.getIndex(), rng));
+        });
+        strategies.put("exact", (recipe, seed) -> {
+            if (recipe.getStages().size() > LinearExtensions.MAX_STAGES) return null;
+            List<Stage> stages = new ArrayList<>(recipe.getStages());
+            LinearExtensions ext = new LinearExtensions(stages);
+            SplittableRandom rng = new SplittableRandom(seed);
+            return () -> byIndex(stages, ext.sample(rng));
+        });
+        return strategies;
+    }
+
+    private static List<Stage> byIndex(List<Stage> stages, int[] order) {
+        List<Stage> result = new ArrayList<>(order.length);
+        for (int i : order) result.add(stages.get(i));
+        return result;
+    }
+
+    /**
+     * The reference recipes by name
+     */
+    private static Map<String, Recipe> corpus() {
+        Map<String, Recipe> corpus = new LinkedHashMap<>();
+        corpus.put("chili", CustomerTest.chiliSinCarne());
+        corpus.put("chain", RecipeFactory.getRecipe("chain")
+                .addStage(1, "a").addStage(2, "b", 1).addStage(3, "c", 2)
+                .addStage(4, "d", 3).addStage(5, "e", 4).addStage(6, "f", 5)
+                .finish());
+        corpus.put("independent", RecipeFactory.getRecipe("independent")
+                .addStage(1, "a").addStage(2, "b").addStage(3, "c").addStage(4, "d").addStage(5, "e")
+                .finish());
+        corpus.put("diamond", RecipeFactory.getRecipe("diamond")
+                .addStage(1, "a").addStage(2, "b", 1).addStage(3, "c", 1).addStage(4, "d", 2, 3)
+                .finish());
+        corpus.put("twoChains", RecipeFactory.getRecipe("twoChains")
+                .addStage(1, "a").addStage(2, "b", 1).addStage(3, "c", 2)
+                .addStage(4, "d").addStage(5, "e", 4).addStage(6, "f", 5)
+                .finish());
+        corpus.put("joinThenTail", RecipeFactory.getRecipe("joinThenTail")
+                .addStage(1, "a").addStage(2, "b").addStage(3, "c", 1, 2).addStage(4, "d", 3)
+                .finish());
+        corpus.put("forkJoin", RecipeFactory.getRecipe("forkJoin")
+                .addStage(1, "a").addStage(2, "b", 1).addStage(3, "c", 1).addStage(4, "d", 1)
+                .addStage(5, "e", 2, 3, 4).addStage(6, "f").addStage(7, "g", 5, 6)
+                .finish());
+        corpus.put("layered", layered(20, 10, new Random(SEED)));
+        return corpus;
+    }
+
+    /**
+     * Builds a large recipe of layers, every stage depends on two stages of the layer before
+     */
+    private static Recipe layered(int layers, int width, Random rng) {
+        Recipe recipe = RecipeFactory.getRecipe("layered");
+        for (int l = 0; l < layers; l++) {
+            for (int w = 0; w < width; w++) {
+                int id = l * width + w;
+                if (l == 0) {
+                    recipe.addStage(id, "stage " + id);
+                } else {
+                    int p1 = (l - 1) * width + rng.nextInt(width);
+                    int p2 = (l - 1) * width + rng.nextInt(width);
+                    if (p1 == p2) recipe.addStage(id, "stage " + id, p1);
+                    else recipe.addStage(id, "stage " + id, p1, p2);
+                }
+            }
+        }
+        return recipe.finish();
+    }
+
+    /**
+     * Reports the exact figures of the recipe which do not depend on the strategy
+     */
+    private static void describe(String name, List<Stage> stages, LinearExtensions ext, Map<String, String> report) {
+        report.put(name + ".stages", String.valueOf(stages.size()));
+        if (ext == null) return;
+        report.put(name + ".extensions", String.valueOf(ext.count()));
+        double[][] expected = ext.positionProbabilities();
+        for (int s = 0; s < stages.size(); s++) {
+            report.put(stageKey(name + ".uniform", s) + ".meanPosition", format(mean(expected[s])));
+        }
+    }
+
+    /**
+     * Runs measure() in its own thread, so that a strategy which never returns does not stop the harness
+     */
+    private static Map<String, String> measureWithTimeout(String key, Recipe recipe, List<Stage> stages,
+                                                          LinearExtensions ext, Strategy strategy, int samples)
+            throws InterruptedException {
+        Map<String, String> result = new TreeMap<>();
+        Thread runner = new Thread(() -> measure(key, recipe, stages, ext, strategy, samples, result), "harness-" + key);
+        runner.setDaemon(true);
+        runner.start();
+        runner.join(TIMEOUT_MILLIS);
+        if (runner.isAlive()) {
+            runner.interrupt();
+            runner.join(STOP_MILLIS);
+            Map<String, String> timedOut = new TreeMap<>();
+            timedOut.put(key + ".verdict", "timeout");
+            // a run stuck in a single order keeps spinning beside the later runs
+            if (runner.isAlive()) timedOut.put("skewedBy", key);
+            return timedOut;
+        }
+        return result;
+    }
+
+    private static void measure(String key, Recipe recipe, List<Stage> stages, LinearExtensions ext,
+                                Strategy strategy, int samples, Map<String, String> report) {
+        Sampler sampler = strategy.prepare(recipe, SEED);
+        if (sampler == null) {
+            report.put(key + ".verdict", "unsupported");
+            return;
+        }
+        int n = stages.size();
+        int[] counts = ext != null && ext.count() <= MAX_CELLS ? new int[(int) ext.count()] : null;
+        long[][] positions = ext != null ? new long[n][n] : null;
+        long invalid = 0;
+        long errors = 0;
+        String firstError = null;
+        long nanos = 0;
+
+        for (int i = 0; i < samples; i++) {
+            // timed out, the result is thrown away
+            if (Thread.currentThread().isInterrupted()) return;
+            long start = System.nanoTime();
+            List<Stage> order;
+            try {
+                order = sampler.next();
+            } catch (RuntimeException e) {
+                nanos += System.nanoTime() - start;
+                if (errors++ == 0) firstError = e.toString();
+                continue;
+            }
+            nanos += System.nanoTime() - start;
+
+            if (ext == null) {
+                if (!isValid(recipe, order)) invalid++;
+                continue;
+            }
+            long rank = ext.rank(order);
+            if (rank < 0) {
+                invalid++;
+                continue;
+            }
+            if (counts != null) counts[(int) rank]++;
+            for (int pos = 0; pos < n; pos++) {
+                positions[ext.indexOf(order.get(pos))][pos]++;
+            }
+        }
+
+        long valid = samples - invalid - errors;
+        report.put(key + ".ordersPerSecond", String.format(Locale.ROOT, "%.0f", samples / (nanos / 1e9)));
+        report.put(key + ".invalid", String.valueOf(invalid));
+        report.put(key + ".errors", String.valueOf(errors));
+        if (firstError != null) report.put(key + ".firstError", firstError.replace('\n', ' '));
+
+        double pValue = 1;
+        if (counts != null && valid > 0) {
+            double expected = (double) valid / counts.length;
+            double chiSquare = 0;
+            double kl = 0;
+            int distinct = 0;
+            for (int c : counts) {
+                chiSquare += (c - expected) * (c - expected) / expected;
+                if (c > 0) {
+                    distinct++;
+                    double p = (double) c / valid;
+                    kl += p * Math.log(p * counts.length);
+                }
+            }
+            int df = counts.length - 1;
+            if (df > 0) pValue = chiSquarePValue(chiSquare, df);
+            report.put(key + ".distinctOrders", String.valueOf(distinct));
+            report.put(key + ".chiSquare", format(chiSquare));
+            report.put(key + ".chiSquareDf", String.valueOf(df));
+            report.put(key + ".chiSquareP", format(pValue));
+            report.put(key + ".klDivergence", format(kl));
+            // divergence an unbiased strategy shows on average with this many samples
+            report.put(key + ".klNoise", format(df / (2.0 * valid)));
+        }
+        if (positions != null && valid > 0) {
+            double[][] expected = ext.positionProbabilities();
+            double worst = 0;
+            for (int s = 0; s < n; s++) {
+                double[] observed = new double[n];
+                double distance = 0;
+                for (int pos = 0; pos < n; pos++) {
+                    observed[pos] = (double) positions[s][pos] / valid;
+                    distance += Math.abs(observed[pos] - expected[s][pos]) / 2;
+                }
+                worst = Math.max(worst, distance);
+                report.put(stageKey(key, s) + ".meanPosition", format(mean(observed)));
+                report.put(stageKey(key, s) + ".positionDistance", format(distance));
+            }
+            report.put(key + ".maxPositionDistance", format(worst));
+        }
+
+        String verdict = "ok";
+        if (invalid > 0 || errors > 0) verdict = "invalid";
+        else if (pValue < BIAS_P_VALUE) verdict = "biased";
+        report.put(key + ".verdict", verdict);
+    }
+
+    private static boolean isValid(Recipe recipe, List<Stage> order) {
+        try {
+            return StageOrderValidator.validate(recipe, order) == null;
+        } catch (IllegalArgumentException e) {
+            // a stage is missing or repeated
+            return false;
+        }
+    }
+
+    private static String stageKey(String key, int stage) {
+        return String.format(Locale.ROOT, "%s.stage.%02d", key, stage);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static double mean(double[] distribution) {
+        double mean = 0;
+        for (int pos = 0; pos < distribution.length; pos++) mean += pos * distribution[pos];
+        return mean;
+    }
+
+    /**
+     * Upper tail probability of the chi-square distribution,
+     * with the Wilson-Hilferty normal approximation
+     */
+    private static double chiSquarePValue(double x, int df) {
+        double k = 2.0 / (9.0 * df);
+        double z = (Math.cbrt(x / df) - (1 - k)) / Math.sqrt(k);
+        return 0.5 * erfc(z / Math.sqrt(2));
+    }
+
+    /**
+     * Complementary error function, accurate to about 1e-7
+     */
+    private static double erfc(double x) {
+        double t = 1 / (1 + 0.5 * Math.abs(x));
+        double y = t * Math.exp(-x * x - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+                + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? y : 2 - y;
+    }
+}
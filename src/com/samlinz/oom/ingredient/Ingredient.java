@@ -1,5 +1,11 @@
 package com.samlinz.oom.ingredient;
 
+import com.samlinz.oom.text.SymbolTable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Class represents a single ingredient
  * Created by samlinz on 25.11.2016.
@@ -15,8 +21,9 @@ public class Ingredient {
     Ingredient() {
     }
 
-    // ingredient as text
-    private String description;
+    // ingredient as a String, or a SymbolTable.Packed when compressed
+    // null until set
+    private Object description;
 
     /**
      * @.pre true
@@ -24,7 +31,36 @@ public class Ingredient {
      * @return ingredient string
      */
     public String getDescription() {
-        return description;
+        Object d = description;
+        if (d instanceof SymbolTable.Packed) return ((SymbolTable.Packed) d).decode();
+        return (String) d;
+    }
+
+    /**
+     * Writes the description in UTF-8 to the stream
+     * A compressed description is decoded straight into the stream,
+     * nothing is written if the description has not been set
+     * @.pre out != null
+     * @.post the description has been written to out
+     * @param out stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeDescription(OutputStream out) throws IOException {
+        Object d = description;
+        if (d instanceof SymbolTable.Packed) ((SymbolTable.Packed) d).writeTo(out);
+        else if (d != null) out.write(((String) d).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replaces the description with its compressed form
+     * Must not be called while other threads read the description
+     * @.pre table != null
+     * @.post getDescription() returns the same text as before
+     * @param table symbol table to compress with
+     */
+    public void compressDescription(SymbolTable table) {
+        Object d = description;
+        if (d instanceof String) description = table.pack((String) d);
     }
 
     /**
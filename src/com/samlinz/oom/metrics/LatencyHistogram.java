@@ -0,0 +1,130 @@
+package com.samlinz.oom.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram of durations
+ *
+ * Values are counted in log-linear buckets: each power of two range is split
+ * into eight equal buckets, so any recorded value is known within 12.5 %
+ * while the whole range of a long fits in a fixed 512 counter array.
+ * Recording is a single atomic increment and never allocates.
+ *
+ * @author Samuel Lindqvist
+ */
+public class LatencyHistogram {
+
+    // sub-buckets per power of two, as bits
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // counts per bucket
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_COUNT);
+    // total of recorded values, for the mean
+    private final LongAdder sum = new LongAdder();
+    // amount of recorded values
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Records a single duration
+     * @.pre nanos >= 0
+     * @.post getCount() == PRE.getCount() + 1
+     * @param nanos duration in nanoseconds, negative values are counted as zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        sum.add(nanos);
+        total.increment();
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of recorded values
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return mean of the recorded values in nanoseconds, 0 if nothing is recorded
+     */
+    public long getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Returns the upper bound of the bucket which holds the given percentile
+     * @.pre 0 <= percentile <= 100
+     * @.post RESULT >= 0
+     * @param percentile percentile to look up, for example 99.9
+     * @return the percentile in nanoseconds, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long n = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    /**
+     * Clears every recorded value
+     * Values recorded concurrently with the reset may or may not be kept
+     * @.pre true
+     * @.post getCount() == 0 if nothing is recorded concurrently
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        sum.reset();
+        total.reset();
+    }
+
+    /**
+     * Bucket index of a value
+     * Values below SUB_COUNT get a bucket of their own, larger ones are indexed
+     * by their highest bit and the SUB_BITS bits following it
+     */
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Largest value which falls into the given bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        long low = (1L << exp) | (sub << (exp - SUB_BITS));
+        return low + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + TimeUnit.NANOSECONDS.toMicros(getMean()) + "us"
+                + " p50=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(50)) + "us"
+                + " p99=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(99)) + "us"
+                + " p99.9=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(99.9)) + "us"
+                + " max=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(100)) + "us";
+    }
+}
@@ -0,0 +1,177 @@
+package com.samlinz.oom.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of named counters and latency histograms
+ *
+ * Counters are striped LongAdders and histograms are LatencyHistograms, so
+ * updating either from many threads does not contend. Metrics are created on first
+ * use and live as long as the registry. The current values can be dumped into
+ * a text file or published as attributes of an MBean.
+ *
+ * @author Samuel Lindqvist
+ */
+public class MetricsRegistry {
+
+    // registry used by the library itself
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @.pre true
+     * @.post RESULT != null
+     * @return the registry the library records its own metrics in
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed
+     * @.pre name != null
+     * @.post RESULT != null & counter(name) == RESULT
+     * @param name name of the counter
+     * @return the counter
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, (n) -> new LongAdder());
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed
+     * @.pre name != null
+     * @.post RESULT != null & histogram(name) == RESULT
+     * @param name name of the histogram
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, (n) -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns the current values, one per line and sorted by name
+     * Histograms are written as their count, mean and percentiles
+     * @.pre true
+     * @.post RESULT != null
+     * @return the metrics as text
+     */
+    public String dump() {
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<String, Object> e : values().entrySet()) {
+            str.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return str.toString();
+    }
+
+    /**
+     * Writes the current values into a file, replacing its contents
+     * @.pre file != null
+     * @.post file contains dump()
+     * @param file the file to write
+     * @throws IOException if writing fails
+     */
+    public void dump(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(dump());
+        }
+    }
+
+    /**
+     * Publishes the metrics as attributes of an MBean in the platform MBean server
+     * Metrics created after the registration are included as well
+     * @.pre name is a valid object name which is not registered yet
+     * @.post the MBean is registered
+     * @param name object name of the MBean, for example "com.samlinz.oom:type=Metrics"
+     * @throws JMException if the MBean can not be registered
+     */
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(name));
+    }
+
+    /**
+     * Flattened current values, histograms split into their count and percentiles
+     */
+    private Map<String, Object> values() {
+        Map<String, Object> values = new ConcurrentSkipListMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        histograms.forEach((name, h) -> {
+            values.put(name + ".count", h.getCount());
+            values.put(name + ".mean", h.getMean());
+            values.put(name + ".p50", h.getPercentile(50));
+            values.put(name + ".p99", h.getPercentile(99));
+            values.put(name + ".p999", h.getPercentile(99.9));
+            values.put(name + ".max", h.getPercentile(100));
+        });
+        return values;
+    }
+
+    /**
+     * Read-only MBean view of the registry, values of histograms are in nanoseconds
+     */
+    private class Bean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = values().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = values();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                if (values.containsKey(a)) list.add(new Attribute(a, values.get(a)));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : values().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Recipe metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
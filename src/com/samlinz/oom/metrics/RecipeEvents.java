@@ -0,0 +1,85 @@
+package com.samlinz.oom.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events of building, shuffling and outputting recipes
+ *
+ * Each event measures the duration between begin() and commit() and carries the
+ * size of the handled stage graph. The sizes are only worth computing when
+ * shouldCommit() returns true, which is false unless a recording is running.
+ * Requires a JDK with jdk.jfr, 8u262 or later.
+ *
+ * @author Samuel Lindqvist
+ */
+public class RecipeEvents {
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private RecipeEvents() {
+    }
+
+    /**
+     * Recipe.finish()
+     */
+    @Name("com.samlinz.oom.Finish")
+    @Label("Recipe Finish")
+    @Category("Recipes")
+    public static class Finish extends Event {
+        @Label("Recipe Id")
+        public int recipeId;
+        @Label("Stages")
+        public int stages;
+        @Label("Edges")
+        public int edges;
+    }
+
+    /**
+     * StageFactory.fixChildren()
+     */
+    @Name("com.samlinz.oom.FixChildren")
+    @Label("Fix Stage Children")
+    @Category("Recipes")
+    public static class FixChildren extends Event {
+        @Label("Stages")
+        public int stages;
+        @Label("Edges")
+        public int edges;
+    }
+
+    /**
+     * Shuffling the stages of a recipe
+     */
+    @Name("com.samlinz.oom.Shuffle")
+    @Label("Shuffle Stages")
+    @Category("Recipes")
+    public static class Shuffle extends Event {
+        @Label("Recipe Id")
+        public int recipeId;
+        @Label("Stages")
+        public int stages;
+        @Label("Edges")
+        public int edges;
+    }
+
+    /**
+     * Outputting the stages or ingredients of a recipe
+     */
+    @Name("com.samlinz.oom.Output")
+    @Label("Output Recipe")
+    @Category("Recipes")
+    @Description("Writing the stages or ingredients of a recipe to a stream")
+    public static class Output extends Event {
+        @Label("Recipe Id")
+        public int recipeId;
+        @Label("What")
+        public String what;
+        @Label("Lines")
+        public int lines;
+    }
+}
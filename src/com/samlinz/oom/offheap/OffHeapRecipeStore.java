@@ -0,0 +1,374 @@
+package com.samlinz.oom.offheap;
+
+import com.samlinz.oom.ingredient.Ingredient;
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.stage.Stage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Append-only store which keeps recipes outside the Java heap
+ *
+ * Everything is kept in a few large direct buffers which the garbage collector
+ * never has to scan:
+ * - recipe table, fixed size rows of offsets into the other buffers
+ * - stage table, fixed size rows per stage
+ * - edge buffer, parent and child indices of every stage, stored as recipe-local ints
+ * - text buffer, UTF-8 bytes of names and descriptions
+ *
+ * Stored recipes are read through the flyweight views RecipeView and StageView,
+ * which only hold an index. Shuffling and output work directly on the buffers
+ * without creating Recipe or Stage objects.
+ *
+ * The buffers are SegmentedBuffers addressed by long offsets, so no table is limited
+ * by the 2 GiB size of a single ByteBuffer. The store is safe for concurrent reading
+ * once writing has finished, adding recipes must not happen concurrently.
+ *
+ * @author Samuel Lindqvist
+ */
+public class OffHeapRecipeStore {
+
+    // recipe row: id, name text offset (long), name length, first stage (long), stage count,
+    //             first ingredient (long), ingredient count
+    private static final int RECIPE_ROW = 40;
+    private static final int RECIPE_ID = 0;
+    private static final int RECIPE_NAME = 4;
+    private static final int RECIPE_NAME_LENGTH = 12;
+    private static final int RECIPE_FIRST_STAGE = 16;
+    private static final int RECIPE_STAGE_COUNT = 24;
+    private static final int RECIPE_FIRST_INGREDIENT = 28;
+    private static final int RECIPE_INGREDIENT_COUNT = 36;
+    // stage row: id, text offset (long), text length, first edge (long), parent count, child count
+    // the child edges follow the parent edges
+    private static final int STAGE_ROW = 32;
+    private static final int STAGE_ID = 0;
+    private static final int STAGE_TEXT = 4;
+    private static final int STAGE_TEXT_LENGTH = 12;
+    private static final int STAGE_FIRST_EDGE = 16;
+    private static final int STAGE_PARENT_COUNT = 24;
+    private static final int STAGE_CHILD_COUNT = 28;
+    // ingredient row: text offset (long), text length
+    private static final int INGREDIENT_ROW = 12;
+
+    private final SegmentedBuffer recipes = new SegmentedBuffer(1 << 12);
+    private final SegmentedBuffer stages = new SegmentedBuffer(1 << 16);
+    private final SegmentedBuffer ingredients = new SegmentedBuffer(1 << 14);
+    private final SegmentedBuffer edges = new SegmentedBuffer(1 << 16);
+    private final SegmentedBuffer text = new SegmentedBuffer(1 << 20);
+
+    private int recipeCount;
+    private long stageCount;
+    private long ingredientCount;
+    private long edgeCount;
+
+    /**
+     * Copies the recipe into the store
+     * The recipe object can be dropped afterwards
+     * Child links are derived from the parents, so the recipe does not need to be finished
+     * @.pre recipe != null & every parent of a stage belongs to the recipe
+     * @.post getRecipeCount() == PRE.getRecipeCount() + 1
+     * @param recipe recipe to store
+     * @return view of the stored recipe
+     */
+    public RecipeView add(Recipe recipe) {
+        if (recipeCount == Integer.MAX_VALUE) throw new IllegalStateException("Off-heap store is full");
+        List<Stage> stageList = recipe.getStages();
+        int n = stageList.size();
+        Map<Stage, Integer> local = new IdentityHashMap<>(n);
+        for (int i = 0; i < n; i++) local.put(stageList.get(i), i);
+
+        // recipe-local parent and child indices
+        int[][] parents = new int[n][];
+        int[] childCounts = new int[n];
+        for (int i = 0; i < n; i++) {
+            Stage s = stageList.get(i);
+            parents[i] = new int[s.getParents().size()];
+            for (int k = 0; k < parents[i].length; k++) {
+                Integer p = local.get(s.getParents().get(k));
+                if (p == null)
+                    throw new IllegalArgumentException("Stage " + s.getId() + " depends on a stage outside the recipe");
+                parents[i][k] = p;
+                childCounts[p]++;
+            }
+        }
+        int[][] children = new int[n][];
+        for (int i = 0; i < n; i++) children[i] = new int[childCounts[i]];
+        int[] fill = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int p : parents[i]) children[p][fill[p]++] = i;
+        }
+
+        long firstStage = stageCount;
+        for (int i = 0; i < n; i++) {
+            Stage s = stageList.get(i);
+            byte[] description = s.getDescription().getBytes(StandardCharsets.UTF_8);
+            long textOffset = putText(description);
+            long firstEdge = putEdges(parents[i]);
+            putEdges(children[i]);
+            long row = stages.reserve(STAGE_ROW);
+            stages.putInt(row + STAGE_ID, s.getId());
+            stages.putLong(row + STAGE_TEXT, textOffset);
+            stages.putInt(row + STAGE_TEXT_LENGTH, description.length);
+            stages.putLong(row + STAGE_FIRST_EDGE, firstEdge);
+            stages.putInt(row + STAGE_PARENT_COUNT, parents[i].length);
+            stages.putInt(row + STAGE_CHILD_COUNT, children[i].length);
+            stageCount++;
+        }
+
+        long firstIngredient = ingredientCount;
+        for (Ingredient i : recipe.getIngredients()) {
+            byte[] description = i.getDescription().getBytes(StandardCharsets.UTF_8);
+            long textOffset = putText(description);
+            long row = ingredients.reserve(INGREDIENT_ROW);
+            ingredients.putLong(row, textOffset);
+            ingredients.putInt(row + 8, description.length);
+            ingredientCount++;
+        }
+
+        byte[] name = recipe.getName().getBytes(StandardCharsets.UTF_8);
+        long nameOffset = putText(name);
+        long row = recipes.reserve(RECIPE_ROW);
+        recipes.putInt(row + RECIPE_ID, recipe.getId());
+        recipes.putLong(row + RECIPE_NAME, nameOffset);
+        recipes.putInt(row + RECIPE_NAME_LENGTH, name.length);
+        recipes.putLong(row + RECIPE_FIRST_STAGE, firstStage);
+        recipes.putInt(row + RECIPE_STAGE_COUNT, n);
+        recipes.putLong(row + RECIPE_FIRST_INGREDIENT, firstIngredient);
+        recipes.putInt(row + RECIPE_INGREDIENT_COUNT, recipe.getIngredients().size());
+        return new RecipeView(this, recipeCount++);
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of stored recipes
+     */
+    public int getRecipeCount() {
+        return recipeCount;
+    }
+
+    /**
+     * @.pre 0 <= index < getRecipeCount()
+     * @.post RESULT != null
+     * @param index index of the recipe in the order it was added
+     * @return view of the recipe
+     */
+    public RecipeView getRecipe(int index) {
+        if (index < 0 || index >= recipeCount) throw new IndexOutOfBoundsException("No recipe at " + index);
+        return new RecipeView(this, index);
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return bytes used outside the heap by the stored data
+     */
+    public long getUsedBytes() {
+        return recipes.position() + stages.position() + ingredients.position()
+                + edges.position() + text.position();
+    }
+
+    /**
+     * Writes a shuffled variant of a stored recipe, in the same format as
+     * RecipeUtils.renderVariant(), straight from the buffers
+     * Stages are ordered with a randomized topological sort, so the variants differ from
+     * the ones of RecipeUtils.shuffleStages() with the same seed
+     * @.pre 0 <= index < getRecipeCount() & out != null
+     * @.post the variant has been written to out
+     * @param index index of the recipe
+     * @param seed seed of the variant
+     * @param out stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeVariant(int index, long seed, OutputStream out) throws IOException {
+        getRecipe(index);
+        SplittableRandom rng = new SplittableRandom(seed);
+        byte[] chunk = new byte[4096];
+        long recipe = recipeRow(index);
+        writeText(recipes.getLong(recipe + RECIPE_NAME), recipes.getInt(recipe + RECIPE_NAME_LENGTH), out, chunk);
+
+        int[] ingredientOrder = identity(ingredientCount(index));
+        shuffle(ingredientOrder, rng);
+        long firstIngredient = recipes.getLong(recipe + RECIPE_FIRST_INGREDIENT);
+        for (int i : ingredientOrder) {
+            long row = (firstIngredient + i) * INGREDIENT_ROW;
+            writeText(ingredients.getLong(row), ingredients.getInt(row + 8), out, chunk);
+        }
+
+        long firstStage = firstStage(index);
+        for (int s : shuffledStages(index, rng)) {
+            long row = stageRow(firstStage + s);
+            writeText(stages.getLong(row + STAGE_TEXT), stages.getInt(row + STAGE_TEXT_LENGTH), out, chunk);
+        }
+    }
+
+    /**
+     * Randomized Kahn's sort of a stored recipe's stages
+     * @param index index of the recipe
+     * @param rng source of randomness
+     * @return recipe-local stage indices in a random order which respects the dependencies
+     */
+    public int[] shuffledStages(int index, SplittableRandom rng) {
+        long first = firstStage(index);
+        int n = stageCount(index);
+        int[] pending = new int[n];
+        int[] ready = new int[n];
+        int readyCount = 0;
+        for (int i = 0; i < n; i++) {
+            pending[i] = parentCount(first + i);
+            if (pending[i] == 0) ready[readyCount++] = i;
+        }
+        int[] order = new int[n];
+        int pos = 0;
+        while (readyCount > 0) {
+            int pick = rng.nextInt(readyCount);
+            int s = ready[pick];
+            ready[pick] = ready[--readyCount];
+            order[pos++] = s;
+            long row = stageRow(first + s);
+            long firstChild = stages.getLong(row + STAGE_FIRST_EDGE) + stages.getInt(row + STAGE_PARENT_COUNT);
+            int children = stages.getInt(row + STAGE_CHILD_COUNT);
+            for (int e = 0; e < children; e++) {
+                int c = edges.getInt((firstChild + e) * 4);
+                if (--pending[c] == 0) ready[readyCount++] = c;
+            }
+        }
+        if (pos != n) throw new IllegalStateException("Stage dependencies of recipe " + index + " contain a cycle");
+        return order;
+    }
+
+    // accessors for the views
+
+    int recipeId(int index) {
+        return recipes.getInt(recipeRow(index) + RECIPE_ID);
+    }
+
+    String recipeName(int index) {
+        long row = recipeRow(index);
+        return string(recipes.getLong(row + RECIPE_NAME), recipes.getInt(row + RECIPE_NAME_LENGTH));
+    }
+
+    long firstStage(int index) {
+        return recipes.getLong(recipeRow(index) + RECIPE_FIRST_STAGE);
+    }
+
+    int stageCount(int index) {
+        return recipes.getInt(recipeRow(index) + RECIPE_STAGE_COUNT);
+    }
+
+    int ingredientCount(int index) {
+        return recipes.getInt(recipeRow(index) + RECIPE_INGREDIENT_COUNT);
+    }
+
+    String ingredientText(int index, int ingredient) {
+        long row = (recipes.getLong(recipeRow(index) + RECIPE_FIRST_INGREDIENT) + ingredient) * INGREDIENT_ROW;
+        return string(ingredients.getLong(row), ingredients.getInt(row + 8));
+    }
+
+    int stageId(long stage) {
+        return stages.getInt(stageRow(stage) + STAGE_ID);
+    }
+
+    String stageText(long stage) {
+        long row = stageRow(stage);
+        return string(stages.getLong(row + STAGE_TEXT), stages.getInt(row + STAGE_TEXT_LENGTH));
+    }
+
+    int parentCount(long stage) {
+        return stages.getInt(stageRow(stage) + STAGE_PARENT_COUNT);
+    }
+
+    int childCount(long stage) {
+        return stages.getInt(stageRow(stage) + STAGE_CHILD_COUNT);
+    }
+
+    /**
+     * @return recipe-local index of the stage's parent
+     */
+    int parent(long stage, int i) {
+        return edges.getInt((stages.getLong(stageRow(stage) + STAGE_FIRST_EDGE) + i) * 4);
+    }
+
+    /**
+     * @return recipe-local index of the stage's child
+     */
+    int child(long stage, int i) {
+        return parent(stage, parentCount(stage) + i);
+    }
+
+    private static long recipeRow(int index) {
+        return (long) index * RECIPE_ROW;
+    }
+
+    private static long stageRow(long stage) {
+        return stage * STAGE_ROW;
+    }
+
+    private String string(long offset, int length) {
+        byte[] bytes = new byte[length];
+        text.get(offset, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies a text followed by a line break to the stream through the given chunk
+     */
+    private void writeText(long offset, int length, OutputStream out, byte[] chunk) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, chunk.length);
+            text.get(offset, chunk, 0, n);
+            out.write(chunk, 0, n);
+            offset += n;
+            length -= n;
+        }
+        out.write('\n');
+    }
+
+    // writing
+
+    /**
+     * Appends the text
+     * @return offset of the text
+     */
+    private long putText(byte[] bytes) {
+        long offset = text.reserve(bytes.length);
+        text.put(offset, bytes, 0, bytes.length);
+        return offset;
+    }
+
+    /**
+     * Appends recipe-local stage indices
+     * @return index of the first appended edge
+     */
+    private long putEdges(int[] linked) {
+        long first = edgeCount;
+        long offset = edges.reserve(linked.length * 4);
+        for (int l : linked) {
+            edges.putInt(offset, l);
+            offset += 4;
+        }
+        edgeCount += linked.length;
+        return first;
+    }
+
+    private static int[] identity(int n) {
+        int[] array = new int[n];
+        for (int i = 0; i < n; i++) array[i] = i;
+        return array;
+    }
+
+    private static void shuffle(int[] array, SplittableRandom rng) {
+        for (int i = array.length - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.samlinz.oom.offheap;
+
+/**
+ * Flyweight view of a recipe stored in an OffHeapRecipeStore
+ * Holds only the store and the recipe's index, every value is read from the store when asked
+ *
+ * @author Samuel Lindqvist
+ */
+public class RecipeView {
+
+    private final OffHeapRecipeStore store;
+    private final int index;
+
+    /**
+     * Constructor, package-private
+     * Views are given by OffHeapRecipeStore
+     */
+    RecipeView(OffHeapRecipeStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @return index of the recipe in its store
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @return id of the recipe it was stored from
+     */
+    public int getId() {
+        return store.recipeId(index);
+    }
+
+    /**
+     * Decodes the name, allocates a new String
+     * @.pre true
+     * @.post RESULT != null
+     * @return name of the recipe
+     */
+    public String getName() {
+        return store.recipeName(index);
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of stages
+     */
+    public int getStageCount() {
+        return store.stageCount(index);
+    }
+
+    /**
+     * @.pre 0 <= stage < getStageCount()
+     * @.post RESULT != null
+     * @param stage index of the stage in the recipe's stored order
+     * @return view of the stage
+     */
+    public StageView getStage(int stage) {
+        if (stage < 0 || stage >= getStageCount()) throw new IndexOutOfBoundsException("No stage at " + stage);
+        return new StageView(store, firstStage(), firstStage() + stage);
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of ingredients
+     */
+    public int getIngredientCount() {
+        return store.ingredientCount(index);
+    }
+
+    /**
+     * Decodes an ingredient, allocates a new String
+     * @.pre 0 <= ingredient < getIngredientCount()
+     * @.post RESULT != null
+     * @param ingredient index of the ingredient
+     * @return description of the ingredient
+     */
+    public String getIngredient(int ingredient) {
+        if (ingredient < 0 || ingredient >= getIngredientCount())
+            throw new IndexOutOfBoundsException("No ingredient at " + ingredient);
+        return store.ingredientText(index, ingredient);
+    }
+
+    long firstStage() {
+        return store.firstStage(index);
+    }
+}
@@ -0,0 +1,150 @@
+package com.samlinz.oom.offheap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Append-only direct memory made of fixed size segments, addressed by long offsets
+ *
+ * A single ByteBuffer is limited to 2 GiB, and growing one by doubling stops at 1 GiB.
+ * Here only the first segment grows by doubling, until it reaches the segment size,
+ * after which every further segment is allocated at full size and nothing is copied.
+ *
+ * Ints are written at offsets which are multiples of four, so they never cross the border
+ * of two segments, bytes may.
+ *
+ * @author Samuel Lindqvist
+ */
+final class SegmentedBuffer {
+
+    // 64 MiB segments
+    private static final int SEGMENT_SHIFT = 26;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private ByteBuffer[] segments;
+    private int segmentCount;
+    private long position;
+
+    /**
+     * Constructor
+     * @.pre 0 < initialCapacity <= SEGMENT_SIZE & initialCapacity is a power of two
+     * @.post position() == 0
+     * @param initialCapacity initial size of the first segment
+     */
+    SegmentedBuffer(int initialCapacity) {
+        segments = new ByteBuffer[] { allocate(initialCapacity) };
+        segmentCount = 1;
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of bytes appended so far
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Reserves room for the given amount of bytes at the end
+     * @.pre bytes >= 0
+     * @.post position() == PRE.position() + bytes
+     * @param bytes amount of bytes
+     * @return offset of the reserved bytes
+     */
+    long reserve(int bytes) {
+        long offset = position;
+        long needed = offset + bytes;
+        while (capacity() < needed) grow(needed);
+        position = needed;
+        return offset;
+    }
+
+    void putInt(long offset, int value) {
+        segment(offset).putInt(within(offset), value);
+    }
+
+    int getInt(long offset) {
+        return segment(offset).getInt(within(offset));
+    }
+
+    void putLong(long offset, long value) {
+        // as two ints, so the halves may lie in different segments
+        putInt(offset, (int) (value >>> 32));
+        putInt(offset + 4, (int) value);
+    }
+
+    long getLong(long offset) {
+        return ((long) getInt(offset) << 32) | (getInt(offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copies bytes into the buffer
+     * @.pre offset + length <= position()
+     */
+    void put(long offset, byte[] src, int from, int length) {
+        while (length > 0) {
+            ByteBuffer view = segment(offset).duplicate();
+            view.position(within(offset));
+            int n = Math.min(length, view.remaining());
+            view.put(src, from, n);
+            offset += n;
+            from += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies bytes out of the buffer
+     * @.pre offset + length <= position()
+     */
+    void get(long offset, byte[] dst, int from, int length) {
+        while (length > 0) {
+            ByteBuffer view = segment(offset).duplicate();
+            view.position(within(offset));
+            int n = Math.min(length, view.remaining());
+            view.get(dst, from, n);
+            offset += n;
+            from += n;
+            length -= n;
+        }
+    }
+
+    private long capacity() {
+        if (segmentCount == 1) return segments[0].capacity();
+        return (long) segmentCount << SEGMENT_SHIFT;
+    }
+
+    private void grow(long needed) {
+        ByteBuffer first = segments[0];
+        if (segmentCount == 1 && first.capacity() < SEGMENT_SIZE) {
+            // copying needs the old and the new buffer at the same time, so growing
+            // briefly takes twice the direct memory of the first segment, never more
+            long capacity = first.capacity();
+            while (capacity < needed && capacity < SEGMENT_SIZE) capacity *= 2;
+            ByteBuffer grown = allocate((int) capacity);
+            ByteBuffer old = first.duplicate();
+            old.clear();
+            grown.put(old);
+            grown.clear();
+            segments[0] = grown;
+            return;
+        }
+        if (segmentCount == segments.length) segments = Arrays.copyOf(segments, segmentCount * 2);
+        segments[segmentCount++] = allocate(SEGMENT_SIZE);
+    }
+
+    private ByteBuffer segment(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)];
+    }
+
+    private static int within(long offset) {
+        return (int) (offset & SEGMENT_MASK);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,102 @@
+package com.samlinz.oom.offheap;
+
+/**
+ * Flyweight view of a stage stored in an OffHeapRecipeStore
+ * Holds only the store and the stage's index, every value is read from the store when asked
+ *
+ * @author Samuel Lindqvist
+ */
+public class StageView {
+
+    private final OffHeapRecipeStore store;
+    // index of the recipe's first stage, links are stored relative to it
+    private final long base;
+    private final long index;
+
+    /**
+     * Constructor, package-private
+     * Views are given by RecipeView
+     */
+    StageView(OffHeapRecipeStore store, long base, long index) {
+        this.store = store;
+        this.base = base;
+        this.index = index;
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @return id of the stage it was stored from
+     */
+    public int getId() {
+        return store.stageId(index);
+    }
+
+    /**
+     * Decodes the description, allocates a new String
+     * @.pre true
+     * @.post RESULT != null
+     * @return stage textual description
+     */
+    public String getDescription() {
+        return store.stageText(index);
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of dependencies
+     */
+    public int getParentCount() {
+        return store.parentCount(index);
+    }
+
+    /**
+     * @.pre 0 <= i < getParentCount()
+     * @.post RESULT != null
+     * @param i index of the dependency
+     * @return view of the dependency
+     */
+    public StageView getParent(int i) {
+        if (i < 0 || i >= getParentCount()) throw new IndexOutOfBoundsException("No parent at " + i);
+        return new StageView(store, base, base + store.parent(index, i));
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of dependent stages
+     */
+    public int getChildCount() {
+        return store.childCount(index);
+    }
+
+    /**
+     * @.pre 0 <= i < getChildCount()
+     * @.post RESULT != null
+     * @param i index of the dependent stage
+     * @return view of the dependent stage
+     */
+    public StageView getChild(int i) {
+        if (i < 0 || i >= getChildCount()) throw new IndexOutOfBoundsException("No child at " + i);
+        return new StageView(store, base, base + store.child(index, i));
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @return true if the stage has no dependencies
+     */
+    public boolean isRoot() {
+        return getParentCount() == 0;
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @return true if no stage depends on this one
+     */
+    public boolean isLeaf() {
+        return getChildCount() == 0;
+    }
+}
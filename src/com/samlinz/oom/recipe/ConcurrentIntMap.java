@@ -0,0 +1,263 @@
+package com.samlinz.oom.recipe;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent hash map with primitive int keys
+ *
+ * The keys are spread over stripes, each an open addressing table with linear probing
+ * guarded by its own lock, so writers of different stripes never wait for each other.
+ * Reads are optimistic: the table is probed without locking and the read is retried
+ * under the lock only if a writer changed the stripe meanwhile.
+ *
+ * Null values are not allowed.
+ *
+ * @author Samuel Lindqvist
+ */
+final class ConcurrentIntMap<V> {
+
+    // must be a power of two
+    private static final int STRIPES = 64;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Constructor
+     * @.pre true
+     * @.post size() == 0
+     */
+    ConcurrentIntMap() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @param key the key
+     * @return the value of the key, null if none
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int h = mix(key);
+        Stripe stripe = stripes[h & (STRIPES - 1)];
+        long stamp = stripe.lock.tryOptimisticRead();
+        Object value = stripe.table.find(key, h);
+        if (stripe.lock.validate(stamp)) return (V) value;
+        stamp = stripe.lock.readLock();
+        try {
+            return (V) stripe.table.find(key, h);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @.pre value != null
+     * @.post get(key) == value
+     * @param key the key
+     * @param value the value
+     * @return the previous value of the key, null if none
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (value == null) throw new NullPointerException("Null values are not allowed");
+        int h = mix(key);
+        Stripe stripe = stripes[h & (STRIPES - 1)];
+        long stamp = stripe.lock.writeLock();
+        try {
+            return (V) stripe.put(key, h, value);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Puts the value only if the key has none
+     * @.pre value != null
+     * @.post get(key) != null
+     * @param key the key
+     * @param value the value
+     * @return the value the key already had, null if the value was put
+     */
+    @SuppressWarnings("unchecked")
+    V putIfAbsent(int key, V value) {
+        if (value == null) throw new NullPointerException("Null values are not allowed");
+        int h = mix(key);
+        Stripe stripe = stripes[h & (STRIPES - 1)];
+        long stamp = stripe.lock.writeLock();
+        try {
+            Object existing = stripe.table.find(key, h);
+            if (existing != null) return (V) existing;
+            stripe.put(key, h, value);
+            return null;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @.pre true
+     * @.post get(key) == null
+     * @param key the key
+     * @return the removed value, null if none
+     */
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int h = mix(key);
+        Stripe stripe = stripes[h & (STRIPES - 1)];
+        long stamp = stripe.lock.writeLock();
+        try {
+            return (V) stripe.remove(key, h);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the key only if it has the given value
+     * @.pre true
+     * @.post get(key) != value
+     * @return true if the key was removed
+     */
+    boolean remove(int key, V value) {
+        int h = mix(key);
+        Stripe stripe = stripes[h & (STRIPES - 1)];
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (stripe.table.find(key, h) != value) return false;
+            stripe.remove(key, h);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Amount of keys, not exact while the map is modified
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of keys
+     */
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes) size += s.size;
+        return size;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Keys and values of a stripe, replaced as a whole when the stripe grows
+     * so that an optimistic reader always sees arrays of the same size
+     */
+    private static final class Table {
+
+        final int[] keys;
+        // null marks a free slot
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+
+        /**
+         * Probes for the key, at most once around the table in case the
+         * table is modified while it is read optimistically
+         */
+        Object find(int key, int h) {
+            int mask = keys.length - 1;
+            int slot = (h >>> 6) & mask;
+            for (int i = 0; i <= mask; i++) {
+                Object v = values[slot];
+                if (v == null) return null;
+                if (keys[slot] == key) return v;
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    private static final class Stripe {
+
+        final StampedLock lock = new StampedLock();
+        volatile Table table = new Table(INITIAL_CAPACITY);
+        volatile int size;
+
+        Object put(int key, int h, Object value) {
+            Table t = table;
+            int mask = t.keys.length - 1;
+            int slot = (h >>> 6) & mask;
+            while (t.values[slot] != null) {
+                if (t.keys[slot] == key) {
+                    Object old = t.values[slot];
+                    t.values[slot] = value;
+                    return old;
+                }
+                slot = (slot + 1) & mask;
+            }
+            t.keys[slot] = key;
+            t.values[slot] = value;
+            size++;
+            // keep at most half of the slots in use
+            if (size * 2 > t.keys.length) grow();
+            return null;
+        }
+
+        Object remove(int key, int h) {
+            Table t = table;
+            int mask = t.keys.length - 1;
+            int slot = (h >>> 6) & mask;
+            while (t.values[slot] != null) {
+                if (t.keys[slot] == key) {
+                    Object old = t.values[slot];
+                    shiftBack(t, slot);
+                    size--;
+                    return old;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * Frees the slot and moves back the entries after it which would otherwise
+         * become unreachable, so no tombstones are needed
+         */
+        private static void shiftBack(Table t, int free) {
+            int mask = t.keys.length - 1;
+            int slot = free;
+            while (true) {
+                slot = (slot + 1) & mask;
+                if (t.values[slot] == null) break;
+                int home = (mix(t.keys[slot]) >>> 6) & mask;
+                // move the entry if its home is not between the free slot and its slot
+                boolean between = free <= slot ? free < home && home <= slot : free < home || home <= slot;
+                if (!between) {
+                    t.keys[free] = t.keys[slot];
+                    t.values[free] = t.values[slot];
+                    free = slot;
+                }
+            }
+            t.values[free] = null;
+        }
+
+        private void grow() {
+            Table old = table;
+            Table grown = new Table(old.keys.length * 2);
+            int mask = grown.keys.length - 1;
+            for (int i = 0; i < old.keys.length; i++) {
+                if (old.values[i] == null) continue;
+                int slot = (mix(old.keys[i]) >>> 6) & mask;
+                while (grown.values[slot] != null) slot = (slot + 1) & mask;
+                grown.keys[slot] = old.keys[i];
+                grown.values[slot] = old.values[i];
+            }
+            table = grown;
+        }
+    }
+}
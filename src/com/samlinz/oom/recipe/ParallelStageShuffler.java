@@ -0,0 +1,402 @@
+package com.samlinz.oom.recipe;
+
+import com.samlinz.oom.metrics.LatencyHistogram;
+import com.samlinz.oom.metrics.MetricsRegistry;
+import com.samlinz.oom.metrics.RecipeEvents;
+import com.samlinz.oom.stage.Stage;
+import com.samlinz.oom.stage.StageFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * Shuffles the stages of very large recipes using multiple threads
+ *
+ * The stage graph is split into its weakly connected parts which share no
+ * dependencies with each other. Each part is shuffled as its own ForkJoin task
+ * with an independent random number stream, and the results are interleaved
+ * randomly into a single list, which keeps every part in a valid order.
+ *
+ * A part which is too large to be handled by a single task is further split into
+ * topological layers, stages in a layer never depend on each other so each layer
+ * can be shuffled concurrently and the layers concatenated in order.
+ *
+ * @author Samuel Lindqvist
+ */
+public class ParallelStageShuffler {
+
+    // parts smaller than this are shuffled together in one task
+    private static final int BATCH_SIZE = 4096;
+    // parts larger than this are shuffled layer by layer
+    private static final int LAYER_THRESHOLD = 65536;
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private ParallelStageShuffler() {
+    }
+
+    /**
+     * Shuffles the stages of the recipe in the common ForkJoinPool
+     * @.pre recipe != null && recipe.getStages() != null
+     * @.post recipe has its stages in a new random order which respects every dependency
+     * @param recipe the recipe to be handled
+     */
+    public static void shuffleStages(Recipe recipe) {
+        shuffleStages(recipe, ForkJoinPool.commonPool(), new SplittableRandom());
+    }
+
+    /**
+     * Shuffles the stages of the recipe in the given pool
+     * The same seed and stage order always produce the same result,
+     * regardless of the amount of threads
+     * @.pre recipe != null && pool != null && rng != null
+     * @.post recipe has its stages in a new random order which respects every dependency
+     * @param recipe the recipe to be handled
+     * @param pool pool which executes the shuffling tasks
+     * @param rng source of randomness, split for every task
+     */
+    public static void shuffleStages(Recipe recipe, ForkJoinPool pool, SplittableRandom rng) {
+        LOG.fine("Shuffling stages for recipe " + recipe.getId() + " in parallel");
+        RecipeEvents.Shuffle event = new RecipeEvents.Shuffle();
+        event.begin();
+        long start = System.nanoTime();
+
+        List<RecursiveAction> tasks = new ArrayList<>();
+        // the stages must not change between reading and replacing them
+        synchronized (recipe) {
+            Graph graph = new Graph(recipe.getStages());
+            List<int[]> parts = graph.components();
+
+            // one random stream per part, split before forking so the result is deterministic
+            int[][] orders = new int[parts.size()][];
+            List<int[]> batch = new ArrayList<>();
+            List<Integer> batchSlots = new ArrayList<>();
+            int batchStages = 0;
+            for (int i = 0; i < parts.size(); i++) {
+                int[] part = parts.get(i);
+                if (part.length > LAYER_THRESHOLD) {
+                    tasks.add(new LayeredShuffle(graph, part, orders, i, rng.split()));
+                    continue;
+                }
+                batch.add(part);
+                batchSlots.add(i);
+                batchStages += part.length;
+                if (batchStages >= BATCH_SIZE) {
+                    tasks.add(new BatchShuffle(graph, batch, batchSlots, orders, rng.split()));
+                    batch = new ArrayList<>();
+                    batchSlots = new ArrayList<>();
+                    batchStages = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                tasks.add(new BatchShuffle(graph, batch, batchSlots, orders, rng.split()));
+            }
+
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+
+            recipe.setStages(graph.interleave(orders, rng));
+        }
+
+        SHUFFLE_TIME.record(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.recipeId = recipe.getId();
+            event.stages = recipe.getStages().size();
+            event.edges = StageFactory.countEdges(recipe.getStages());
+            event.commit();
+        }
+
+        LOG.info("Recipe " + recipe.getId() + " stages shuffled in " + tasks.size() + " tasks");
+    }
+
+    /**
+     * Shuffles a group of small parts in a single task
+     */
+    private static class BatchShuffle extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Graph graph;
+        private final List<int[]> parts;
+        private final List<Integer> slots;
+        private final int[][] orders;
+        private final SplittableRandom rng;
+
+        BatchShuffle(Graph graph, List<int[]> parts, List<Integer> slots, int[][] orders, SplittableRandom rng) {
+            this.graph = graph;
+            this.parts = parts;
+            this.slots = slots;
+            this.orders = orders;
+            this.rng = rng;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < parts.size(); i++) {
+                orders[slots.get(i)] = graph.randomOrder(parts.get(i), rng);
+            }
+        }
+    }
+
+    /**
+     * Shuffles a large part by shuffling each of its topological layers concurrently
+     */
+    private static class LayeredShuffle extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Graph graph;
+        private final int[] part;
+        private final int[][] orders;
+        private final int slot;
+        private final SplittableRandom rng;
+
+        LayeredShuffle(Graph graph, int[] part, int[][] orders, int slot, SplittableRandom rng) {
+            this.graph = graph;
+            this.part = part;
+            this.orders = orders;
+            this.slot = slot;
+            this.rng = rng;
+        }
+
+        @Override
+        protected void compute() {
+            List<int[]> layers = graph.layers(part);
+            List<RecursiveAction> tasks = new ArrayList<>(layers.size());
+            for (int[] layer : layers) {
+                SplittableRandom layerRng = rng.split();
+                // narrow layers are not worth a task of their own
+                if (layer.length < BATCH_SIZE) {
+                    shuffle(layer, layerRng);
+                    continue;
+                }
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        shuffle(layer, layerRng);
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            int[] order = new int[part.length];
+            int pos = 0;
+            for (int[] layer : layers) {
+                System.arraycopy(layer, 0, order, pos, layer.length);
+                pos += layer.length;
+            }
+            orders[slot] = order;
+        }
+    }
+
+    /**
+     * Fisher-Yates shuffle of an int array
+     * @param array array to be shuffled in place
+     * @param rng source of randomness
+     */
+    private static void shuffle(int[] array, SplittableRandom rng) {
+        for (int i = array.length - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+
+    /**
+     * Read-only index based copy of the recipe's stage graph
+     * Built once and shared between the tasks
+     */
+    private static class Graph {
+
+        private final Stage[] stages;
+        // parents of stage i are parents[parentOffsets[i]] ... parents[parentOffsets[i + 1] - 1]
+        private final int[] parentOffsets;
+        private final int[] parents;
+        // children in the same layout, derived from the parents
+        private final int[] childOffsets;
+        private final int[] children;
+        // position of each stage within its own part, set by components()
+        private final int[] localIndex;
+
+        Graph(List<Stage> stageList) {
+            stages = stageList.toArray(new Stage[0]);
+            int n = stages.length;
+            Map<Stage, Integer> indices = new IdentityHashMap<>(n);
+            for (int i = 0; i < n; i++) indices.put(stages[i], i);
+
+            parentOffsets = new int[n + 1];
+            int edges = 0;
+            for (int i = 0; i < n; i++) {
+                parentOffsets[i] = edges;
+                edges += stages[i].getParents().size();
+            }
+            parentOffsets[n] = edges;
+            parents = new int[edges];
+            childOffsets = new int[n + 1];
+            localIndex = new int[n];
+            int e = 0;
+            for (int i = 0; i < n; i++) {
+                for (Stage p : stages[i].getParents()) {
+                    Integer idx = indices.get(p);
+                    if (idx == null)
+                        throw new IllegalArgumentException("Stage " + stages[i].getId()
+                                + " depends on a stage outside the recipe");
+                    parents[e++] = idx;
+                    childOffsets[idx + 1]++;
+                }
+            }
+            for (int i = 0; i < n; i++) childOffsets[i + 1] += childOffsets[i];
+            children = new int[edges];
+            int[] fill = new int[n];
+            for (int i = 0; i < n; i++) {
+                for (int k = parentOffsets[i]; k < parentOffsets[i + 1]; k++) {
+                    int p = parents[k];
+                    children[childOffsets[p] + fill[p]++] = i;
+                }
+            }
+        }
+
+        /**
+         * Splits the graph into weakly connected parts with union-find
+         * @return stage indices of each part, in their original order
+         */
+        List<int[]> components() {
+            int n = stages.length;
+            int[] root = new int[n];
+            for (int i = 0; i < n; i++) root[i] = i;
+            for (int i = 0; i < n; i++) {
+                for (int k = parentOffsets[i]; k < parentOffsets[i + 1]; k++) {
+                    int a = find(root, i);
+                    int b = find(root, parents[k]);
+                    if (a != b) root[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+            int[] sizes = new int[n];
+            for (int i = 0; i < n; i++) sizes[find(root, i)]++;
+            int[][] byRoot = new int[n][];
+            int[] fill = new int[n];
+            List<int[]> result = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                int r = root[i];
+                if (byRoot[r] == null) {
+                    byRoot[r] = new int[sizes[r]];
+                    result.add(byRoot[r]);
+                }
+                localIndex[i] = fill[r];
+                byRoot[r][fill[r]++] = i;
+            }
+            return result;
+        }
+
+        private static int find(int[] root, int i) {
+            while (root[i] != i) {
+                root[i] = root[root[i]];
+                i = root[i];
+            }
+            return i;
+        }
+
+        /**
+         * Randomized Kahn's algorithm over a single part
+         * @param part stage indices of the part
+         * @param rng source of randomness
+         * @return the part's stages in a random valid order
+         */
+        int[] randomOrder(int[] part, SplittableRandom rng) {
+            int[] order = new int[part.length];
+            int[] pending = new int[part.length];
+            int[] ready = new int[part.length];
+            int readyCount = 0;
+            for (int i = 0; i < part.length; i++) {
+                int s = part[i];
+                pending[i] = parentOffsets[s + 1] - parentOffsets[s];
+                if (pending[i] == 0) ready[readyCount++] = s;
+            }
+            int pos = 0;
+            while (readyCount > 0) {
+                int pick = rng.nextInt(readyCount);
+                int s = ready[pick];
+                ready[pick] = ready[--readyCount];
+                order[pos++] = s;
+                for (int k = childOffsets[s]; k < childOffsets[s + 1]; k++) {
+                    int c = children[k];
+                    if (--pending[localIndex[c]] == 0) ready[readyCount++] = c;
+                }
+            }
+            if (pos != part.length)
+                throw new IllegalStateException("Stage dependencies contain a cycle");
+            return order;
+        }
+
+        /**
+         * Groups a part into topological layers by longest path from its roots
+         * @param part stage indices of the part
+         * @return the layers in dependency order
+         */
+        List<int[]> layers(int[] part) {
+            int[] order = randomOrder(part, new SplittableRandom(0));
+            int[] depth = new int[part.length];
+            int maxDepth = 0;
+            for (int s : order) {
+                int d = 0;
+                for (int k = parentOffsets[s]; k < parentOffsets[s + 1]; k++) {
+                    d = Math.max(d, depth[localIndex[parents[k]]] + 1);
+                }
+                depth[localIndex[s]] = d;
+                maxDepth = Math.max(maxDepth, d);
+            }
+            int[] sizes = new int[maxDepth + 1];
+            for (int d : depth) sizes[d]++;
+            List<int[]> layers = new ArrayList<>(maxDepth + 1);
+            for (int size : sizes) layers.add(new int[size]);
+            int[] fill = new int[maxDepth + 1];
+            for (int i = 0; i < part.length; i++) {
+                layers.get(depth[i])[fill[depth[i]]++] = part[i];
+            }
+            return layers;
+        }
+
+        /**
+         * Interleaves the shuffled parts randomly
+         * A random permutation of part labels decides which part the next stage
+         * is taken from, each part keeps its own order
+         * @param orders shuffled stage indices of each part
+         * @param rng source of randomness
+         * @return the merged list of stages
+         */
+        List<Stage> interleave(int[][] orders, SplittableRandom rng) {
+            int[] labels = new int[stages.length];
+            int pos = 0;
+            for (int p = 0; p < orders.length; p++) {
+                for (int i = 0; i < orders[p].length; i++) labels[pos++] = p;
+            }
+            shuffle(labels, rng);
+            int[] next = new int[orders.length];
+            List<Stage> result = new ArrayList<>(stages.length);
+            for (int p : labels) {
+                result.add(stages[orders[p][next[p]++]]);
+            }
+            return result;
+        }
+    }
+
+    // duration of parallel shuffles
+    private static final LatencyHistogram SHUFFLE_TIME =
+            MetricsRegistry.getDefault().histogram("recipe.shuffle.parallel");
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(ParallelStageShuffler.class.getName());
+}
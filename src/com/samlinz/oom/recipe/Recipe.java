@@ -2,6 +2,9 @@ package com.samlinz.oom.recipe;
 
 import com.samlinz.oom.ingredient.Ingredient;
 import com.samlinz.oom.ingredient.IngredientFactory;
+import com.samlinz.oom.metrics.LatencyHistogram;
+import com.samlinz.oom.metrics.MetricsRegistry;
+import com.samlinz.oom.metrics.RecipeEvents;
 import com.samlinz.oom.stage.Stage;
 import com.samlinz.oom.stage.StageFactory;
 
@@ -9,7 +12,13 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Logger;
 
 /**
@@ -34,26 +43,50 @@ public class Recipe {
     private int id;
     // recipe name
     private String name;
+    // bumped on every change made through the setters and add methods
+    private volatile int version;
+    // the setters and add methods may be called from many threads
+    private static final AtomicIntegerFieldUpdater<Recipe> VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(Recipe.class, "version");
 
-    // list of manufacturing stages
-    List<Stage> stages;
-    // list of ingredients
-    List<Ingredient> ingredients;
+    // list of manufacturing stages, replaced whole by shuffling
+    // null until the first stage is added or the list is asked for
+    private volatile List<Stage> stages;
+    // list of ingredients, null until the first ingredient is added or the list is asked for
+    private volatile List<Ingredient> ingredients;
+
+    // sub-recipes and stages added after them, not yet turned into stages, null if none
+    private volatile List<Deferred> deferred;
+    // finish() was called while stages were deferred, link them once they are created
+    private boolean linkDeferred;
+    // sub-recipes whose shared stages are in the stage list, null if none
+    private List<SubRecipe> sharing;
 
     /**
      * Recipe constructor
      * Initializes the object
      * Package-private to force the customer to address RecipeFactory
+     * The lists are created when first needed, recipes built in bulk get theirs whole
      * @.pre true
      * @.post (getStages() != null && getStaged().size() == 0) &
      *          (getIngredients() != null && getIngredients().size() == 0)
      */
     Recipe() {
-        stages = new ArrayList<>();
-        ingredients = new ArrayList<>();
         LOG.fine("New recipe object created");
     }
 
+    /**
+     * Recipe constructor for recipes which RecipeFactory does not register
+     * Sets the id and name without notifying the catalog
+     * @.pre true
+     * @.post getId() == id & getName() == name
+     */
+    Recipe(int id, String name) {
+        this();
+        this.id = id;
+        this.name = name;
+    }
+
     /**
      * @.pre id is set via setId
      * @.post RESULT != null
@@ -67,9 +100,33 @@ public class Recipe {
      * @.pre true
      * @.post getIId() == id
      * @param id identification number
+     * @throws IllegalStateException if the recipe is in the catalog and another recipe
+     *          there has the id, the recipe keeps its old id then
      */
     public void setId(int id) {
+        int old = this.id;
         this.id = id;
+        RecipeCatalog catalog = RecipeFactory.catalog;
+        if (catalog == null || old == id) return;
+        try {
+            catalog.renumbered(this, old);
+        } catch (IllegalStateException e) {
+            this.id = old;
+            throw e;
+        }
+    }
+
+    /**
+     * Version stamp of the recipe, changes whenever the recipe is modified through
+     * its setters and add methods, including shuffling
+     * Changes made directly to the lists returned by getStages() and getIngredients()
+     * are not tracked
+     * @.pre true
+     * @.post true
+     * @return current version of the recipe
+     */
+    public int getVersion() {
+        return version;
     }
 
     /**
@@ -78,16 +135,44 @@ public class Recipe {
      * @return arraylist of stage objects
      */
     public List<Stage> getStages() {
+        if (deferred != null) {
+            RecipeEvents.Finish event = new RecipeEvents.Finish();
+            if (expand(event)) {
+                finished(event);
+                LOG.info("Finishing recipe " + getName() + ", deferred stages linked");
+            }
+        }
+        List<Stage> list = stages;
+        return list != null ? list : stageList();
+    }
+
+    /**
+     * @return the stage list, created if there is none yet
+     */
+    private synchronized List<Stage> stageList() {
+        if (stages == null) stages = new ArrayList<>();
         return stages;
     }
 
+    /**
+     * @return the ingredient list, created if there is none yet
+     */
+    private synchronized List<Ingredient> ingredientList() {
+        if (ingredients == null) ingredients = new ArrayList<>();
+        return ingredients;
+    }
+
     /**
      * @.pre stages != null
      * @.post getStages() != null && getStages() == stages
      * @param stages
      */
     public void setStages(List<Stage> stages) {
-        this.stages = stages;
+        synchronized (this) {
+            this.stages = stages;
+            deferred = null;
+        }
+        VERSION.incrementAndGet(this);
     }
 
     /**
@@ -97,7 +182,17 @@ public class Recipe {
      * @param stage the stage object
      */
     public void addStage(Stage stage) {
-        this.stages.add(stage);
+        synchronized (this) {
+            if (deferred != null) {
+                // keep the order of the stages, this one comes after the deferred sub-recipes
+                defer(new Deferred(null, stage, 0, new int[0]));
+                return;
+            }
+            stageList().add(stage);
+            VERSION.incrementAndGet(this);
+        }
+        RecipeJournal journal = RecipeFactory.journal;
+        if (journal != null) journal.stageAdded(this, stage);
         LOG.info("Adding stage " + stage.getId());
     }
 
@@ -114,34 +209,235 @@ public class Recipe {
      */
     public Recipe addStage(int id, String description, int... dependencies) {
         Stage s = StageFactory.getStage(id, description);
-        if(dependencies.length > 0) {
-            Arrays.stream(dependencies).forEach((d) -> {
-                s.addParent(StageFactory.fetchStage(stages, d));
-            });
-            LOG.fine("Added dependendencies " + s.getParents().toString() + " to " + id);
+        synchronized (this) {
+            if (deferred != null) {
+                // the dependencies may be stages of sub-recipes which do not exist yet
+                defer(new Deferred(null, s, 0, dependencies));
+                return this;
+            }
+            if(dependencies.length > 0) {
+                Arrays.stream(dependencies).forEach((d) -> {
+                    s.addParent(StageFactory.fetchStage(stageList(), d));
+                });
+                LOG.fine("Added dependendencies " + s.getParents().toString() + " to " + id);
+            }
         }
         addStage(s);
         return this;
     }
 
+    /**
+     * Adds the stages of a shared sub-recipe to the end of the list
+     * The stages get the ids firstId ... firstId + sub.size() - 1, and its root stages
+     * depend on the given stages of this recipe
+     * The stages are created only when they are first needed, by getStages() or a shuffle,
+     * until then the recipe only refers to the shared sub-recipe. With a journal set the
+     * stages are created at once, so that the journal can record them.
+     * @.pre sub != null & the new ids are not used by other stages of the recipe
+     * @.post getStages().size() == PRE.getStages().size() + sub.size()
+     * @param sub the sub-recipe
+     * @param firstId id of the first stage of the sub-recipe
+     * @param dependencies ids of the stages which the sub-recipe depends on
+     * @return THIS for streaming
+     */
+    public Recipe addSubRecipe(SubRecipe sub, int firstId, int... dependencies) {
+        if (RecipeFactory.journal != null) {
+            List<Stage> parents = new ArrayList<>(dependencies.length);
+            for (int d : dependencies) {
+                Stage p = StageFactory.fetchStage(getStages(), d);
+                if (p != null) parents.add(p);
+            }
+            for (Stage s : sub.instantiate(firstId, parents)) {
+                addStage(s);
+            }
+            return this;
+        }
+        defer(new Deferred(sub, null, firstId, dependencies));
+        LOG.fine("Adding sub-recipe of " + sub.size() + " stages from " + firstId);
+        return this;
+    }
+
     /**
      * Finish building a recipe
      * Fixes the stage tree, aka fills the missing links between stages
+     * If sub-recipes are still deferred, the stages are linked once they are created
      * @return THIS
      */
     public Recipe finish() {
-        StageFactory.fixChildren(stages);
+        RecipeEvents.Finish event = new RecipeEvents.Finish();
+        synchronized (this) {
+            if (deferred != null) {
+                linkDeferred = true;
+                VERSION.incrementAndGet(this);
+                LOG.info("Finishing new recipe " + getName() + ", stages deferred");
+                return this;
+            }
+            event.begin();
+            long start = System.nanoTime();
+            link();
+            FINISH_TIME.record(System.nanoTime() - start);
+        }
+        finished(event);
         LOG.info("Finishing new recipe " + getName());
         return this;
     }
 
+    /**
+     * Reports the linking of the stages, by finish() or once the deferred stages are created
+     * @.pre the stages were linked since event.begin(), this is not locked
+     * @.post the event is committed and the journal has recorded the finish
+     */
+    private void finished(RecipeEvents.Finish event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.recipeId = id;
+            event.stages = stageList().size();
+            event.edges = StageFactory.countEdges(stageList());
+            event.commit();
+        }
+        VERSION.incrementAndGet(this);
+        RecipeJournal journal = RecipeFactory.journal;
+        if (journal != null) journal.finished(this);
+    }
+
+    /**
+     * Queues a sub-recipe or a stage which has to wait for the deferred stages before it
+     */
+    private synchronized void defer(Deferred d) {
+        if (deferred == null) deferred = new ArrayList<>();
+        deferred.add(d);
+        VERSION.incrementAndGet(this);
+    }
+
+    /**
+     * Creates the deferred stages in the order they were added
+     * Sub-recipes used on their own get the shared stages
+     * If finish() was called meanwhile, the stages are linked and the event begun
+     * @.pre true
+     * @.post deferred == null
+     * @param event finish event, begun if the stages are linked
+     * @return true if the stages were linked, finished() has to report it
+     */
+    private synchronized boolean expand(RecipeEvents.Finish event) {
+        List<Deferred> pending = deferred;
+        if (pending == null) return false;
+        List<Stage> stages = stageList();
+        Map<Integer, Stage> byId = new HashMap<>();
+        for (Stage s : stages) byId.put(s.getId(), s);
+        // stages which deferred stages depend on, those of a sub-recipe can not be shared
+        Set<Integer> needed = new HashSet<>();
+        for (Deferred d : pending) {
+            for (int id : d.dependencies) needed.add(id);
+        }
+        for (Deferred d : pending) {
+            Stage[] shared = d.sub != null && d.dependencies.length == 0 && !neededOf(d, needed)
+                    ? d.sub.shared(d.firstId) : null;
+            if (shared != null) {
+                for (Stage s : shared) {
+                    stages.add(s);
+                    byId.put(s.getId(), s);
+                }
+                if (sharing == null) sharing = new ArrayList<>();
+                sharing.add(d.sub);
+            } else if (d.sub != null) {
+                List<Stage> parents = new ArrayList<>(d.dependencies.length);
+                for (int id : d.dependencies) {
+                    Stage p = byId.get(id);
+                    if (p != null) parents.add(p);
+                }
+                for (Stage s : d.sub.instantiate(d.firstId, parents)) {
+                    stages.add(s);
+                    byId.put(s.getId(), s);
+                }
+            } else {
+                for (int id : d.dependencies) {
+                    Stage p = byId.get(id);
+                    if (p != null) d.stage.addParent(p);
+                }
+                stages.add(d.stage);
+                byId.put(d.stage.getId(), d.stage);
+            }
+        }
+        boolean linked = linkDeferred;
+        if (linked) {
+            event.begin();
+            long start = System.nanoTime();
+            link();
+            FINISH_TIME.record(System.nanoTime() - start);
+        }
+        linkDeferred = false;
+        deferred = null;
+        LOG.fine("Created the deferred stages of recipe " + getName());
+        return linked;
+    }
+
+    /**
+     * @return true if a stage of the deferred sub-recipe is in the given ids
+     */
+    private static boolean neededOf(Deferred d, Set<Integer> needed) {
+        for (int i = 0; i < d.sub.size(); i++) {
+            if (needed.contains(d.firstId + i)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives the recipe its own copies of the shared stages which other stages depend on,
+     * linking them would change the stages of every recipe which shares them
+     * @.pre stages != null & sharing != null
+     * @.post no stage outside the shared stages depends on a shared stage
+     */
+    private void unshareLinked(List<Stage> stages) {
+        Map<Stage, SubRecipe> owners = new IdentityHashMap<>();
+        for (SubRecipe sub : sharing) {
+            for (Stage s : sub.sharedStages()) owners.put(s, sub);
+        }
+        Map<Stage, Stage> copies = new IdentityHashMap<>();
+        for (Stage c : stages) {
+            if (owners.containsKey(c)) continue;
+            for (Stage p : c.getParents()) {
+                SubRecipe sub = owners.get(p);
+                if (sub == null || copies.containsKey(p)) continue;
+                Stage[] shared = sub.sharedStages();
+                Stage[] own = sub.instantiate(shared[0].getId(), Collections.<Stage>emptyList());
+                for (int i = 0; i < own.length; i++) copies.put(shared[i], own[i]);
+                sharing.remove(sub);
+            }
+        }
+        if (copies.isEmpty()) return;
+        for (int i = 0; i < stages.size(); i++) {
+            Stage copy = copies.get(stages.get(i));
+            if (copy != null) stages.set(i, copy);
+            else StageFactory.replaceParents(stages.get(i), copies);
+        }
+        if (sharing.isEmpty()) sharing = null;
+        LOG.fine("Copied " + copies.size() + " shared stages of recipe " + getName());
+    }
+
+    /**
+     * Fills the child links of the stages and drops the spare capacity of the lists
+     * @.pre true
+     * @.post FORALL(s : getStages(); s's children are set)
+     */
+    void link() {
+        // lists which were never created stay so
+        List<Stage> stages = this.stages;
+        List<Ingredient> ingredients = this.ingredients;
+        if (stages != null && sharing != null) unshareLinked(stages);
+        if (stages != null) StageFactory.fixChildren(stages);
+        // no more stages or ingredients are expected, drop the spare capacity
+        if (stages instanceof ArrayList) ((ArrayList<Stage>) stages).trimToSize();
+        if (ingredients instanceof ArrayList) ((ArrayList<Ingredient>) ingredients).trimToSize();
+    }
+
     /**
      * @.pre true
      * @.post RESULT != null
      * @return ArrayList of Recipe Ingredient-objects
      */
     public List<Ingredient> getIngredients() {
-        return ingredients;
+        List<Ingredient> list = ingredients;
+        return list != null ? list : ingredientList();
     }
 
     /**
@@ -151,6 +447,7 @@ public class Recipe {
      */
     public void setIngredients(List<Ingredient> ingredients) {
         this.ingredients = ingredients;
+        VERSION.incrementAndGet(this);
     }
 
     /**
@@ -186,7 +483,12 @@ public class Recipe {
      * @param ingredient
      */
     public void addIngredient(Ingredient ingredient) {
-        this.ingredients.add(ingredient);
+        synchronized (this) {
+            ingredientList().add(ingredient);
+        }
+        VERSION.incrementAndGet(this);
+        RecipeJournal journal = RecipeFactory.journal;
+        if (journal != null) journal.ingredientAdded(this, ingredient);
         LOG.info("Adding ingredient " + ingredient.getDescription());
     }
 
@@ -207,8 +509,32 @@ public class Recipe {
      */
     public Recipe setName(String name) {
         this.name = name;
+        VERSION.incrementAndGet(this);
+        RecipeCatalog catalog = RecipeFactory.catalog;
+        if (catalog != null) catalog.renamed(this);
         return this;
     }
 
-    private Logger LOG = Logger.getLogger(Recipe.class.getName());
+    /**
+     * Sub-recipe, or single stage with dependencies by id, waiting to be added to the stages
+     */
+    private static class Deferred {
+
+        final SubRecipe sub;
+        final Stage stage;
+        final int firstId;
+        final int[] dependencies;
+
+        Deferred(SubRecipe sub, Stage stage, int firstId, int[] dependencies) {
+            this.sub = sub;
+            this.stage = stage;
+            this.firstId = firstId;
+            this.dependencies = dependencies;
+        }
+    }
+
+    // duration of finish()
+    private static final LatencyHistogram FINISH_TIME = MetricsRegistry.getDefault().histogram("recipe.finish");
+
+    private static Logger LOG = Logger.getLogger(Recipe.class.getName());
 }
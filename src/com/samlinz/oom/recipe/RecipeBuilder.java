@@ -0,0 +1,179 @@
+package com.samlinz.oom.recipe;
+
+import com.samlinz.oom.ingredient.Ingredient;
+import com.samlinz.oom.ingredient.IngredientFactory;
+import com.samlinz.oom.metrics.LatencyHistogram;
+import com.samlinz.oom.metrics.MetricsRegistry;
+import com.samlinz.oom.stage.Stage;
+import com.samlinz.oom.stage.StageFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Builds finished recipes from parallel arrays in one pass
+ *
+ * Meant for ingesting recipes at a high rate, where the fluent addStage() API spends
+ * most of its time in varargs, streams, linear stage lookups and log messages.
+ * The stages are given as arrays of ids and descriptions, and their dependencies in
+ * compressed rows: the dependencies of stage i are the stage ids
+ * depIds[depOffsets[i]] ... depIds[depOffsets[i + 1] - 1]
+ * As with addStage(), a stage may only depend on stages before it in the arrays.
+ *
+ * The builder keeps its work buffers between recipes, so one builder should be reused
+ * for many recipes. A builder must not be used by several threads at the same time.
+ *
+ * @author Samuel Lindqvist
+ */
+public class RecipeBuilder {
+
+    // open addressing table from stage id to index, slots are valid when stamped with the current round
+    private int[] slotIds = new int[0];
+    private int[] slotIndices = new int[0];
+    private int[] slotStamps = new int[0];
+    private int round;
+
+    // dependencies resolved to stage indices
+    private int[] depIndices = new int[0];
+    // scratch for StageFactory.buildStages()
+    private int[] work = new int[0];
+
+    /**
+     * Builds a finished recipe
+     * The result is the same as with RecipeFactory.getRecipe(), addIngredient(), addStage() and finish(),
+     * the journal, if one is set, records it the same way
+     * @.pre name != null & ingredients != null & 0 <= stageCount <= ids.length &
+     *          descriptions.length >= stageCount & depOffsets.length > stageCount &
+     *          FORALL(i, j : 0 .. stageCount - 1; i != j ==> ids[i] != ids[j])
+     * @.post RESULT is finished & RESULT.getStages().size() == stageCount
+     * @param name name of the recipe
+     * @param ingredients ingredient descriptions
+     * @param stageCount amount of stages, the arrays may be longer
+     * @param ids stage ids
+     * @param descriptions stage descriptions
+     * @param depOffsets start of each stage's dependencies in depIds, stageCount + 1 values
+     * @param depIds ids of the dependencies
+     * @return the finished recipe
+     * @throws IllegalArgumentException if a stage id is repeated or a dependency is not an earlier stage
+     */
+    public Recipe build(String name, String[] ingredients, int stageCount, int[] ids, String[] descriptions,
+                        int[] depOffsets, int[] depIds) {
+        long start = System.nanoTime();
+        Stage[] built = stages(stageCount, ids, descriptions, depOffsets, depIds);
+        Recipe recipe = RecipeFactory.getRecipe(name);
+        fill(recipe, ingredients, built);
+
+        RecipeJournal journal = RecipeFactory.journal;
+        if (journal != null) {
+            for (Ingredient i : recipe.getIngredients()) journal.ingredientAdded(recipe, i);
+            for (Stage s : recipe.getStages()) journal.stageAdded(recipe, s);
+            journal.finished(recipe);
+        }
+        BUILD_TIME.record(System.nanoTime() - start);
+        LOG.fine("Built recipe " + name + " with " + stageCount + " stages");
+        return recipe;
+    }
+
+    /**
+     * Builds a finished recipe as build() does, but one which keeps the given id and is
+     * not registered anywhere, see RecipeFactory.detached()
+     * @.pre as with build()
+     * @.post RESULT is finished & RESULT.getId() == id
+     * @return the finished recipe
+     * @throws IllegalArgumentException if a stage id is repeated or a dependency is not an earlier stage
+     */
+    Recipe buildDetached(int id, String name, String[] ingredients, int stageCount, int[] ids,
+                         String[] descriptions, int[] depOffsets, int[] depIds) {
+        Stage[] built = stages(stageCount, ids, descriptions, depOffsets, depIds);
+        Recipe recipe = RecipeFactory.detached(id, name);
+        fill(recipe, ingredients, built);
+        return recipe;
+    }
+
+    /**
+     * Resolves the dependencies and builds the linked stages
+     */
+    private Stage[] stages(int stageCount, int[] ids, String[] descriptions, int[] depOffsets, int[] depIds) {
+        index(stageCount, ids);
+        int edges = depOffsets[stageCount] - depOffsets[0];
+        if (depIndices.length < edges) depIndices = new int[Math.max(edges, depIndices.length * 2)];
+        if (work.length < stageCount) work = new int[Math.max(stageCount, work.length * 2)];
+
+        // offsets are rebased so that the resolved dependencies start from zero
+        int base = depOffsets[0];
+        for (int i = 0; i < stageCount; i++) {
+            for (int e = depOffsets[i]; e < depOffsets[i + 1]; e++) {
+                int d = lookup(depIds[e]);
+                if (d >= i) throw new IllegalArgumentException("Stage " + ids[i] + " depends on a later stage " + depIds[e]);
+                depIndices[e - base] = d;
+            }
+        }
+        int[] offsets = depOffsets;
+        if (base != 0) {
+            offsets = new int[stageCount + 1];
+            for (int i = 0; i <= stageCount; i++) offsets[i] = depOffsets[i] - base;
+        }
+        return StageFactory.buildStages(stageCount, ids, descriptions, offsets, depIndices, work);
+    }
+
+    private static void fill(Recipe recipe, String[] ingredients, Stage[] built) {
+        List<Ingredient> ingredientList = new ArrayList<>(ingredients.length);
+        for (String i : ingredients) {
+            ingredientList.add(IngredientFactory.getIngredient(i));
+        }
+        recipe.setIngredients(ingredientList);
+        recipe.setStages(new ArrayList<>(Arrays.asList(built)));
+    }
+
+    /**
+     * Fills the id table with the stage ids of a new recipe
+     */
+    private void index(int count, int[] ids) {
+        int capacity = Integer.highestOneBit(Math.max(count, 4) * 2 - 1) << 1;
+        if (slotIds.length < capacity) {
+            slotIds = new int[capacity];
+            slotIndices = new int[capacity];
+            slotStamps = new int[capacity];
+            round = 0;
+        }
+        if (++round == 0) {
+            // the stamps wrapped around, start over
+            Arrays.fill(slotStamps, 0);
+            round = 1;
+        }
+        int mask = slotIds.length - 1;
+        for (int i = 0; i < count; i++) {
+            int slot = mix(ids[i]) & mask;
+            while (slotStamps[slot] == round) {
+                if (slotIds[slot] == ids[i]) throw new IllegalArgumentException("Stage id " + ids[i] + " is repeated");
+                slot = (slot + 1) & mask;
+            }
+            slotStamps[slot] = round;
+            slotIds[slot] = ids[i];
+            slotIndices[slot] = i;
+        }
+    }
+
+    private int lookup(int id) {
+        int mask = slotIds.length - 1;
+        int slot = mix(id) & mask;
+        while (slotStamps[slot] == round) {
+            if (slotIds[slot] == id) return slotIndices[slot];
+            slot = (slot + 1) & mask;
+        }
+        throw new IllegalArgumentException("Dependency " + id + " is not a stage of the recipe");
+    }
+
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // duration of build()
+    private static final LatencyHistogram BUILD_TIME = MetricsRegistry.getDefault().histogram("recipe.build");
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(RecipeBuilder.class.getName());
+}
@@ -0,0 +1,347 @@
+package com.samlinz.oom.recipe;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Logger;
+
+/**
+ * Thread-safe in-memory catalog of recipes
+ *
+ * Recipes are found by id from a map with primitive keys and by the beginning of their
+ * name from a sorted index, for typeahead. Set the catalog with RecipeFactory.setCatalog()
+ * to register every created recipe, renaming or renumbering a registered recipe updates
+ * the indexes. Renumbering a recipe to an id which another recipe of the catalog has
+ * is refused.
+ *
+ * Batch jobs iterate over a snapshot: the recipes which were in the catalog when the
+ * snapshot was taken, no matter what is added or removed during the iteration. Every
+ * addition and removal is stamped from a common clock, and removed recipes are kept
+ * around until no open snapshot can see them any more.
+ *
+ * Looking up recipes never waits for a lock shared by the whole catalog. Adding and
+ * removing recipes only wait while a snapshot is being opened, so that no snapshot is
+ * stamped in the middle of a change.
+ *
+ * @author Samuel Lindqvist
+ */
+public class RecipeCatalog {
+
+    // stamps additions and removals
+    private final AtomicLong clock = new AtomicLong();
+    // orders the entries for snapshots
+    private final AtomicLong tickets = new AtomicLong();
+
+    private final ConcurrentIntMap<Entry> byId = new ConcurrentIntMap<>();
+    // keyed by lower case name and id, so recipes may share a name
+    private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<>();
+    // every entry in the order of addition, removed ones until they are purged
+    private final ConcurrentSkipListMap<Long, Entry> all = new ConcurrentSkipListMap<>();
+    // removed entries which some snapshot may still need, by removal stamp
+    private final ConcurrentSkipListMap<Long, Entry> retired = new ConcurrentSkipListMap<>();
+    // held shared while stamping a change, exclusively while reading the stamp of a snapshot
+    private final StampedLock stamping = new StampedLock();
+    // amount of open snapshots by stamp
+    private final TreeMap<Long, Integer> open = new TreeMap<>();
+
+    /**
+     * Adds a recipe, replacing the recipe which had the same id
+     * @.pre recipe != null
+     * @.post get(recipe.getId()) == recipe
+     * @param recipe the recipe
+     */
+    public void add(Recipe recipe) {
+        Entry entry = new Entry(recipe, tickets.incrementAndGet());
+        all.put(entry.ticket, entry);
+        publish(entry, byId.put(recipe.getId(), entry));
+        LOG.fine("Added recipe " + recipe.getId() + " to catalog");
+    }
+
+    /**
+     * Removes a recipe
+     * @.pre true
+     * @.post get(id) == null
+     * @param id recipe id
+     * @return the removed recipe, null if there was none
+     */
+    public Recipe remove(int id) {
+        Entry entry = byId.remove(id);
+        if (entry == null) return null;
+        long lock = stamping.readLock();
+        try {
+            retire(entry, clock.incrementAndGet());
+        } finally {
+            stamping.unlockRead(lock);
+        }
+        purge();
+        return entry.recipe;
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @param id recipe id
+     * @return the recipe, null if there is none
+     */
+    public Recipe get(int id) {
+        Entry entry = byId.get(id);
+        return entry == null ? null : entry.recipe;
+    }
+
+    /**
+     * Recipes whose name begins with the prefix, ignoring case, in the order of their names
+     * @.pre prefix != null & limit >= 0
+     * @.post RESULT.size() <= limit
+     * @param prefix beginning of the name
+     * @param limit largest amount of recipes to return
+     * @return the matching recipes
+     */
+    public List<Recipe> findByPrefix(String prefix, int limit) {
+        String from = normalize(prefix);
+        List<Recipe> found = new ArrayList<>(Math.min(limit, 16));
+        for (Map.Entry<String, Entry> e : byName.tailMap(from).entrySet()) {
+            if (found.size() >= limit || !e.getKey().startsWith(from)) break;
+            found.add(e.getValue().recipe);
+        }
+        return found;
+    }
+
+    /**
+     * Amount of recipes, not exact while recipes are added or removed
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of recipes
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Takes a snapshot of the recipes, close it when done
+     * @.pre true
+     * @.post RESULT iterates over the recipes in the catalog at the time of the call
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long stamp;
+        synchronized (open) {
+            // no change is half stamped while the stamp is read
+            long lock = stamping.writeLock();
+            try {
+                stamp = clock.get();
+            } finally {
+                stamping.unlockWrite(lock);
+            }
+            open.merge(stamp, 1, Integer::sum);
+        }
+        return new Snapshot(stamp);
+    }
+
+    /**
+     * Called by RecipeFactory for every created recipe
+     */
+    void registered(Recipe recipe) {
+        add(recipe);
+    }
+
+    /**
+     * Called by Recipe when its name changes
+     */
+    void renamed(Recipe recipe) {
+        Entry entry = byId.get(recipe.getId());
+        if (entry == null || entry.recipe != recipe) return;
+        synchronized (entry) {
+            String key = key(recipe.getName(), recipe.getId());
+            if (key.equals(entry.nameKey)) return;
+            byName.remove(entry.nameKey, entry);
+            entry.nameKey = key;
+            // the entry may have been removed meanwhile
+            if (entry.removed == 0) byName.put(key, entry);
+        }
+    }
+
+    /**
+     * Called by Recipe when its id changes
+     * @throws IllegalStateException if another recipe of the catalog has the new id,
+     *          the recipe stays under its old id then
+     */
+    void renumbered(Recipe recipe, int oldId) {
+        Entry entry = byId.get(oldId);
+        if (entry == null || entry.recipe != recipe) return;
+        Entry moved = new Entry(recipe, tickets.incrementAndGet());
+        all.put(moved.ticket, moved);
+        Entry other = byId.putIfAbsent(recipe.getId(), moved);
+        if (other != null) {
+            all.remove(moved.ticket, moved);
+            throw new IllegalStateException("Recipe " + other.recipe.getName() + " already has id " + recipe.getId());
+        }
+        if (!byId.remove(oldId, entry)) {
+            // removed meanwhile, so the recipe is not in the catalog anymore
+            byId.remove(recipe.getId(), moved);
+            all.remove(moved.ticket, moved);
+            return;
+        }
+        publish(moved, entry);
+    }
+
+    /**
+     * Indexes an entry which is reachable by its id and stamps it added
+     * The entry it replaced is stamped removed at the same time, so snapshots see exactly one of them
+     */
+    private void publish(Entry entry, Entry old) {
+        synchronized (entry) {
+            // the entry may have been replaced or removed meanwhile
+            if (entry.removed == 0) byName.put(entry.nameKey, entry);
+        }
+        long lock = stamping.readLock();
+        try {
+            // stamped only once reachable, so a snapshot which sees the stamp finds the entry
+            long now = clock.incrementAndGet();
+            if (old != null) retire(old, now);
+            entry.added = now;
+        } finally {
+            stamping.unlockRead(lock);
+        }
+        if (old != null) purge();
+    }
+
+    /**
+     * Stamps the entry removed and drops it from the name index
+     * Every removal has its own stamp, except that of a replaced entry which shares the stamp
+     * of its replacement
+     */
+    private void retire(Entry entry, long stamp) {
+        synchronized (entry) {
+            if (entry.removed != 0) return;
+            entry.removed = stamp;
+            byName.remove(entry.nameKey, entry);
+        }
+        retired.put(stamp, entry);
+    }
+
+    /**
+     * Drops removed entries which no open snapshot can see
+     * Only the entries removed before the oldest open snapshot are visited
+     */
+    private void purge() {
+        long oldest;
+        synchronized (open) {
+            oldest = open.isEmpty() ? clock.get() : open.firstKey();
+        }
+        // a snapshot stamped before the removal still sees the entry
+        for (Iterator<Entry> it = retired.headMap(oldest, true).values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            it.remove();
+            all.remove(entry.ticket, entry);
+        }
+    }
+
+    private static String key(String name, int id) {
+        return normalize(name) + '\u0000' + id;
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Recipes of the catalog at one point in time
+     * The recipes are iterated in the order they were added
+     */
+    public class Snapshot implements Iterable<Recipe>, AutoCloseable {
+
+        private final long stamp;
+        private boolean closed;
+
+        private Snapshot(long stamp) {
+            this.stamp = stamp;
+        }
+
+        /**
+         * @.pre the snapshot is not closed
+         * @.post true
+         * @return iterator over the recipes of the snapshot
+         */
+        @Override
+        public Iterator<Recipe> iterator() {
+            if (closed) throw new IllegalStateException("Snapshot is closed");
+            // entries added after the stamp are skipped, so the entries can be read lazily
+            Iterator<Entry> entries = all.values().iterator();
+            return new Iterator<Recipe>() {
+
+                private Entry next = advance();
+
+                private Entry advance() {
+                    while (entries.hasNext()) {
+                        Entry e = entries.next();
+                        if (visible(e)) return e;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Recipe next() {
+                    if (next == null) throw new NoSuchElementException();
+                    Recipe r = next.recipe;
+                    next = advance();
+                    return r;
+                }
+            };
+        }
+
+        private boolean visible(Entry e) {
+            long added = e.added;
+            long removed = e.removed;
+            return added != 0 && added <= stamp && (removed == 0 || removed > stamp);
+        }
+
+        /**
+         * @.pre true
+         * @.post removed recipes which only this snapshot could see are released
+         */
+        @Override
+        public void close() {
+            synchronized (open) {
+                if (closed) return;
+                closed = true;
+                if (open.merge(stamp, -1, Integer::sum) == 0) open.remove(stamp);
+            }
+            purge();
+        }
+    }
+
+    /**
+     * Recipe with its stamps and index keys
+     */
+    private static class Entry {
+
+        final Recipe recipe;
+        final long ticket;
+        String nameKey;
+        // clock value when added, 0 while being added
+        volatile long added;
+        // clock value when removed, 0 while in the catalog
+        volatile long removed;
+
+        Entry(Recipe recipe, long ticket) {
+            this.recipe = recipe;
+            this.ticket = ticket;
+            this.nameKey = key(recipe.getName(), recipe.getId());
+        }
+    }
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(RecipeCatalog.class.getName());
+}
@@ -1,12 +1,20 @@
 package com.samlinz.oom.recipe;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Factory class for Recipe objects
  * Created by samlinz on 25.11.2016.
  */
 public class RecipeFactory {
 
-    private static int ids = 0;
+    // recipes may be created from many threads
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    // journal which records every change made to recipes, null if none
+    static volatile RecipeJournal journal;
+    // catalog which registers every created recipe, null if none
+    static volatile RecipeCatalog catalog;
 
     /**
      * Build and return a new Recipe object
@@ -19,9 +27,59 @@ public class RecipeFactory {
      */
     public static Recipe getRecipe(String name) {
         Recipe newRecipe = new Recipe();
-        newRecipe.setId(ids++);
+        newRecipe.setId(ids.getAndIncrement());
         newRecipe.setName(name);
+        RecipeJournal j = journal;
+        if (j != null) j.recipeCreated(newRecipe);
+        RecipeCatalog c = catalog;
+        if (c != null) c.registered(newRecipe);
         return newRecipe;
     }
 
+    /**
+     * Build a recipe which keeps the given id and is not registered anywhere
+     * No id is taken from the factory, the journal does not record the recipe and the
+     * catalog does not register it. Used for recipes restored from a journal and for
+     * copies of recipes owned elsewhere, such as the ones held by a shard.
+     * @.pre name != null
+     * @.post RESULT.getId() == id
+     * @param id id of the recipe
+     * @param name name of the recipe
+     * @return Recipe object
+     */
+    static Recipe detached(int id, String name) {
+        return new Recipe(id, name);
+    }
+
+    /**
+     * Sets the journal which records the creation and building of recipes
+     * @.pre true
+     * @.post every following change made through RecipeFactory and Recipe is recorded in journal
+     * @param journal the journal, or null to stop recording
+     */
+    public static void setJournal(RecipeJournal journal) {
+        RecipeFactory.journal = journal;
+    }
+
+    /**
+     * Sets the catalog which registers every created recipe
+     * @.pre true
+     * @.post every following recipe made through RecipeFactory is added to catalog
+     * @param catalog the catalog, or null to stop registering
+     */
+    public static void setCatalog(RecipeCatalog catalog) {
+        RecipeFactory.catalog = catalog;
+    }
+
+    /**
+     * Makes sure that new recipes get ids larger than the given one
+     * Used when recipes are restored from a journal
+     * @.pre true
+     * @.post next id > id
+     * @param id largest id in use
+     */
+    static void reserveIds(int id) {
+        ids.accumulateAndGet(id + 1, Math::max);
+    }
+
 }
@@ -0,0 +1,664 @@
+package com.samlinz.oom.recipe;
+
+import com.samlinz.oom.ingredient.Ingredient;
+import com.samlinz.oom.ingredient.IngredientFactory;
+import com.samlinz.oom.stage.Stage;
+import com.samlinz.oom.stage.StageFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only log of the changes made to recipes
+ *
+ * Once set with RecipeFactory.setJournal(), every recipe creation, added ingredient,
+ * added stage and finish() is appended to the journal. Records are written by a single
+ * writer thread which collects every record queued meanwhile into one batch and forces
+ * the whole batch to disk at once, so concurrent builders share the cost of a sync.
+ *
+ * The log is written in numbered segment files. Full segments are folded in the
+ * background into a snapshot file, which holds one record with the whole state of each
+ * recipe, after which the folded segments are deleted. On startup the latest snapshot is
+ * loaded and only the segments written after it are replayed, older files which a crash
+ * left behind are deleted. A record torn by a crash is detected with its checksum and
+ * cut off, and the replay stops there: segments after a corrupt one are moved aside,
+ * since their records would apply to a state with a gap.
+ *
+ * If writing fails, the torn batch is cut off and the journal stops recording, every
+ * later change fails rather than leave a hole in the log.
+ *
+ * Shuffling and other changes made directly to the lists of a recipe are not recorded.
+ *
+ * @author Samuel Lindqvist
+ */
+public class RecipeJournal {
+
+    // record types
+    private static final byte RECIPE = 1;
+    private static final byte INGREDIENT = 2;
+    private static final byte STAGE = 3;
+    private static final byte FINISH = 4;
+    // whole recipe, written by compaction
+    private static final byte STATE = 5;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    // added to segments which were not replayed because an earlier one is corrupt
+    private static final String ORPHAN_SUFFIX = ".orphan";
+
+    // largest amount of records forced in one batch
+    private static final int MAX_BATCH = 4096;
+    // records larger than this are treated as corrupt
+    private static final int MAX_RECORD = 1 << 26;
+    // amount of full segments which triggers a compaction
+    private static final int COMPACT_AFTER = 4;
+
+    // marks the end of the queue
+    private static final Pending CLOSE = new Pending(null);
+
+    private final Path directory;
+    // segments are rotated once they grow over this size
+    private final long segmentBytes;
+    // whether appending threads wait for their record to be synced
+    private final boolean syncOnAppend;
+
+    // recipes restored when the journal was opened
+    private final List<Recipe> recovered;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // guarded by queue, nothing is queued after CLOSE
+    private volatile boolean closed;
+    // cause of the write failure which stopped the journal, null if none
+    private volatile IOException failure;
+
+    // number and channel of the segment being written, changed only by the writer thread
+    private volatile long segment;
+    private FileChannel channel;
+
+    /**
+     * Opens the journal in the given directory and restores the recipes recorded in it
+     * The journal does not record anything before it is set with RecipeFactory.setJournal()
+     * @.pre directory != null & segmentBytes > 0
+     * @.post getRecoveredRecipes() contains the recipes in the journal
+     * @param directory directory of the journal files, created if missing
+     * @param segmentBytes size after which a new segment is started
+     * @param syncOnAppend true if each change waits until its record is on disk
+     * @return the opened journal
+     * @throws IOException if the journal can not be read or created
+     */
+    public static RecipeJournal open(Path directory, long segmentBytes, boolean syncOnAppend) throws IOException {
+        return new RecipeJournal(directory, segmentBytes, syncOnAppend);
+    }
+
+    private RecipeJournal(Path directory, long segmentBytes, boolean syncOnAppend) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncOnAppend = syncOnAppend;
+        Files.createDirectories(directory);
+
+        long started = System.nanoTime();
+        Replay replay = new Replay();
+        long snapshot = latest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX, Long.MAX_VALUE);
+        if (snapshot >= 0) {
+            Path path = file(SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX);
+            // snapshots are written whole and renamed into place, they are never torn
+            if (read(path, replay) < Files.size(path)) throw new IOException("Snapshot " + path + " is corrupt");
+            deleteFolded(snapshot);
+        }
+        long last = Math.max(snapshot, 0) - 1;
+        long lastValid = 0;
+        boolean corrupt = false;
+        for (long s : segments(Math.max(snapshot, 0))) {
+            Path path = file(SEGMENT_PREFIX, s, SEGMENT_SUFFIX);
+            if (corrupt) {
+                Files.move(path, directory.resolve(path.getFileName() + "." + System.currentTimeMillis() + ORPHAN_SUFFIX));
+                LOG.severe("Skipped " + path + " after a corrupt segment");
+                continue;
+            }
+            long valid = read(path, replay);
+            if (valid < Files.size(path)) {
+                // torn tail from a crash, cut it off and replay nothing after it
+                try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    ch.truncate(valid);
+                    ch.force(true);
+                }
+                LOG.warning("Cut torn tail of " + path + " at " + valid);
+                corrupt = true;
+            }
+            last = s;
+            lastValid = valid;
+        }
+        recovered = replay.finish();
+        for (Recipe r : recovered) RecipeFactory.reserveIds(r.getId());
+        LOG.info("Recovered " + recovered.size() + " recipes in "
+                + (System.nanoTime() - started) / 1000000 + " ms");
+
+        // continue in a fresh segment, unless the last one is empty
+        segment = last >= 0 && lastValid == 0 ? last : last + 1;
+        channel = openSegment(segment);
+
+        compactor = Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r, "recipe-journal-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        writer = new Thread(this::writeLoop, "recipe-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT != null
+     * @return the recipes restored from the journal when it was opened
+     */
+    public List<Recipe> getRecoveredRecipes() {
+        return recovered;
+    }
+
+    void recipeCreated(Recipe recipe) {
+        append(encode(RECIPE, recipe.getId(), (out) -> writeString(out, recipe.getName())));
+    }
+
+    void ingredientAdded(Recipe recipe, Ingredient ingredient) {
+        append(encode(INGREDIENT, recipe.getId(), (out) -> writeString(out, ingredient.getDescription())));
+    }
+
+    void stageAdded(Recipe recipe, Stage stage) {
+        append(encode(STAGE, recipe.getId(), (out) -> writeStage(out, stage)));
+    }
+
+    void finished(Recipe recipe) {
+        append(encode(FINISH, recipe.getId(), (out) -> { }));
+    }
+
+    /**
+     * Queues a record for the writer, waiting for the sync if requested
+     */
+    private void append(byte[] record) {
+        Pending pending = new Pending(record);
+        enqueue(pending);
+        if (syncOnAppend) pending.done.join();
+    }
+
+    /**
+     * Waits until every record appended so far is on disk
+     * @.pre true
+     * @.post every change recorded before the call is durable
+     */
+    public void sync() {
+        if (closed) return;
+        Pending marker = new Pending(new byte[0]);
+        enqueue(marker);
+        marker.done.join();
+    }
+
+    /**
+     * Queues a record, unless the journal is closed or has failed
+     */
+    private void enqueue(Pending pending) {
+        // checked and queued under the same lock as CLOSE, so nothing is queued after it
+        synchronized (queue) {
+            if (closed) throw new IllegalStateException("Journal is closed");
+            if (failure != null) throw new UncheckedIOException("Journal stopped after a write failure", failure);
+            queue.add(pending);
+        }
+    }
+
+    /**
+     * Syncs the pending records and stops the journal
+     * Set RecipeFactory.setJournal(null) first, changes after closing fail
+     * @.pre true
+     * @.post the journal files are closed
+     * @throws IOException if the segment can not be closed
+     */
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (closed) return;
+            closed = true;
+            queue.add(CLOSE);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactor.shutdown();
+        channel.close();
+    }
+
+    /**
+     * Writer thread, writes and forces queued records in batches
+     */
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                stop(new InterruptedIOException("Journal writer was interrupted"));
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            int size = 0;
+            for (Pending p : batch) {
+                if (p == CLOSE) running = false;
+                else size += p.record.length;
+            }
+            if (failure != null) {
+                fail(batch, failure);
+                continue;
+            }
+            try {
+                write(batch, size);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Writing the recipe journal failed, no more changes are recorded", e);
+                failure = e;
+                fail(batch, e);
+            }
+        }
+    }
+
+    /**
+     * Stops the journal without writing, failing every queued record
+     */
+    private void stop(IOException cause) {
+        List<Pending> left = new ArrayList<>();
+        synchronized (queue) {
+            failure = cause;
+            queue.drainTo(left);
+        }
+        fail(left, cause);
+    }
+
+    /**
+     * Writes and forces a batch, cutting off whatever part of it was written if that fails
+     */
+    private void write(List<Pending> batch, int size) throws IOException {
+        long start = channel.size();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (Pending p : batch) {
+                if (p != CLOSE) buffer.put(p.record);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+                channel.force(false);
+            } catch (IOException again) {
+                // the checksums find the torn records on replay
+                e.addSuppressed(again);
+            }
+            throw e;
+        }
+        for (Pending p : batch) p.done.complete(null);
+        if (channel.size() >= segmentBytes) rotate();
+    }
+
+    private static void fail(List<Pending> batch, IOException cause) {
+        for (Pending p : batch) p.done.completeExceptionally(new UncheckedIOException(cause));
+    }
+
+    /**
+     * Starts a new segment and compacts the full ones if there are enough of them
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        segment++;
+        channel = openSegment(segment);
+        // only the segments after the latest snapshot are still to be folded
+        long snapshot = latest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX, Long.MAX_VALUE);
+        if (segments(Math.max(snapshot, 0)).size() > COMPACT_AFTER) compactAsync();
+    }
+
+    /**
+     * Deletes the files which the given snapshot has replaced
+     * A crash between writing a snapshot and deleting the files it folded leaves them behind,
+     * compaction only folds the segments after the latest snapshot and never sees them again
+     * @param snapshot number of the latest snapshot
+     */
+    private void deleteFolded(long snapshot) throws IOException {
+        int deleted = 0;
+        for (Path p : list(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(snapshot).values()) {
+            if (Files.deleteIfExists(p)) deleted++;
+        }
+        for (Path p : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(snapshot).values()) {
+            if (Files.deleteIfExists(p)) deleted++;
+        }
+        if (deleted > 0) LOG.warning("Deleted " + deleted + " journal files left behind by a compaction");
+    }
+
+    /**
+     * Folds the full segments into a new snapshot in the background
+     * Nothing is done if a compaction is already running
+     * @.pre true
+     * @.post true
+     */
+    public void compactAsync() {
+        if (!compacting.compareAndSet(false, true)) return;
+        long upTo = segment;
+        compactor.execute(() -> {
+            try {
+                compact(upTo);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Compacting the recipe journal failed", e);
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    /**
+     * Writes a snapshot of the state restored from the latest snapshot and every segment
+     * before the given one, then deletes the folded files
+     * @param upTo number of the first segment not to include, never the one being written
+     */
+    private void compact(long upTo) throws IOException {
+        long previous = latest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX, upTo);
+        List<Long> folded = new ArrayList<>();
+        for (long s : segments(Math.max(previous, 0))) {
+            if (s < upTo) folded.add(s);
+        }
+        if (folded.isEmpty()) return;
+
+        // the state at the end of the folded segments, one record per recipe
+        Replay state = new Replay();
+        if (previous >= 0) read(file(SNAPSHOT_PREFIX, previous, SNAPSHOT_SUFFIX), state);
+        for (long s : folded) read(file(SEGMENT_PREFIX, s, SEGMENT_SUFFIX), state);
+
+        Path target = file(SNAPSHOT_PREFIX, upTo, SNAPSHOT_SUFFIX);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Recipe r : state.finish()) {
+                boolean finished = state.isFinished(r);
+                ByteBuffer buffer = ByteBuffer.wrap(encode(STATE, r.getId(), (o) -> writeState(o, r, finished)));
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+
+        // the new snapshot replaces the folded files
+        if (previous >= 0) Files.deleteIfExists(file(SNAPSHOT_PREFIX, previous, SNAPSHOT_SUFFIX));
+        for (long s : folded) Files.deleteIfExists(file(SEGMENT_PREFIX, s, SEGMENT_SUFFIX));
+        LOG.info("Compacted " + folded.size() + " journal segments into " + target);
+    }
+
+    /**
+     * Reads the valid records of a journal file
+     * @return byte length of the valid part of the file
+     */
+    private static long read(Path path, RecordSink sink) throws IOException {
+        long valid = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD) break;
+                long checksum;
+                byte[] payload = new byte[length];
+                try {
+                    checksum = in.readInt() & 0xFFFFFFFFL;
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if (crc.getValue() != checksum) break;
+
+                ByteBuffer header = ByteBuffer.wrap(payload);
+                byte type = header.get();
+                int recipeId = header.getInt();
+                ByteBuffer record = ByteBuffer.allocate(8 + length);
+                record.putInt(length).putInt((int) checksum).put(payload);
+                sink.accept(type, recipeId, record.array());
+                valid += 8 + length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Encodes a framed record: length, checksum and the payload of type, recipe id and body
+     */
+    private static byte[] encode(byte type, int recipeId, Body body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeInt(recipeId);
+            body.write(out);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, record.length - 8);
+            ByteBuffer.wrap(record).putInt(record.length - 8).putInt((int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeState(DataOutputStream out, Recipe recipe, boolean finished) throws IOException {
+        writeString(out, recipe.getName());
+        out.writeInt(recipe.getIngredients().size());
+        for (Ingredient i : recipe.getIngredients()) writeString(out, i.getDescription());
+        out.writeInt(recipe.getStages().size());
+        for (Stage s : recipe.getStages()) writeStage(out, s);
+        out.writeBoolean(finished);
+    }
+
+    private static void writeStage(DataOutputStream out, Stage stage) throws IOException {
+        out.writeInt(stage.getId());
+        writeString(out, stage.getDescription());
+        out.writeInt(stage.getParents().size());
+        for (Stage p : stage.getParents()) out.writeInt(p.getId());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(file(SEGMENT_PREFIX, number, SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path file(String prefix, long number, String suffix) {
+        return directory.resolve(prefix + String.format("%012d", number) + suffix);
+    }
+
+    /**
+     * @return numbers of the segment files from the given one onwards, in order
+     */
+    private List<Long> segments(long from) throws IOException {
+        TreeMap<Long, Path> found = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        return new ArrayList<>(found.tailMap(from).keySet());
+    }
+
+    /**
+     * @return the largest file number below the limit, -1 if there is none
+     */
+    private long latest(String prefix, String suffix, long below) throws IOException {
+        Long key = list(prefix, suffix).lowerKey(below);
+        return key == null ? -1 : key;
+    }
+
+    private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                try {
+                    found.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), p);
+                } catch (NumberFormatException e) {
+                    // not a journal file
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Rebuilds recipes from records without recording them again
+     */
+    private static class Replay implements RecordSink {
+
+        private final Map<Integer, Recipe> recipes = new LinkedHashMap<>();
+        private final Set<Integer> unknown = new HashSet<>();
+        private final Set<Integer> finished = new HashSet<>();
+
+        @Override
+        public void accept(byte type, int recipeId, byte[] record) {
+            ByteBuffer in = ByteBuffer.wrap(record);
+            // skip length, checksum, type and recipe id
+            in.position(13);
+            if (type == RECIPE || type == STATE) {
+                Recipe recipe = RecipeFactory.detached(recipeId, readString(in));
+                // a recipe created again with the same id replaces the old one
+                recipes.remove(recipeId);
+                recipes.put(recipeId, recipe);
+                finished.remove(recipeId);
+                if (type == STATE) restore(recipe, in);
+                return;
+            }
+            Recipe recipe = recipes.get(recipeId);
+            if (recipe == null) {
+                if (unknown.add(recipeId)) LOG.warning("Journal refers to unknown recipe " + recipeId);
+                return;
+            }
+            switch (type) {
+                case INGREDIENT:
+                    recipe.getIngredients().add(IngredientFactory.getIngredient(readString(in)));
+                    break;
+                case STAGE:
+                    readStage(recipe, in);
+                    break;
+                case FINISH:
+                    recipe.link();
+                    finished.add(recipeId);
+                    break;
+                default:
+                    LOG.warning("Unknown journal record type " + type);
+            }
+        }
+
+        private void restore(Recipe recipe, ByteBuffer in) {
+            int ingredients = in.getInt();
+            for (int i = 0; i < ingredients; i++) {
+                recipe.getIngredients().add(IngredientFactory.getIngredient(readString(in)));
+            }
+            int stages = in.getInt();
+            for (int i = 0; i < stages; i++) readStage(recipe, in);
+            if (in.get() != 0) {
+                recipe.link();
+                finished.add(recipe.getId());
+            }
+        }
+
+        private static void readStage(Recipe recipe, ByteBuffer in) {
+            Stage stage = StageFactory.getStage(in.getInt(), readString(in));
+            int parents = in.getInt();
+            for (int i = 0; i < parents; i++) {
+                Stage parent = StageFactory.fetchStage(recipe.getStages(), in.getInt());
+                if (parent != null) stage.addParent(parent);
+            }
+            recipe.getStages().add(stage);
+        }
+
+        boolean isFinished(Recipe recipe) {
+            return finished.contains(recipe.getId());
+        }
+
+        List<Recipe> finish() {
+            return new ArrayList<>(recipes.values());
+        }
+    }
+
+    /**
+     * Receives the records read from a journal file
+     */
+    private interface RecordSink {
+        void accept(byte type, int recipeId, byte[] record) throws IOException;
+    }
+
+    /**
+     * Writes the body of a record
+     */
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * A record waiting for the writer
+     */
+    private static class Pending {
+
+        private final byte[] record;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(RecipeJournal.class.getName());
+}
@@ -0,0 +1,163 @@
+package com.samlinz.oom.recipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Streams recipes through shuffling and rendering into an output stream
+ *
+ * The pipeline has four steps: a source of recipes, shuffling, rendering the recipe
+ * text and writing it to the sink. Shuffling and rendering run on worker threads
+ * while the calling thread writes the results, so producing and writing overlap.
+ *
+ * The amount of recipes in flight is bounded by the buffer size. When the sink is
+ * slower than the workers the buffer fills up and the source is not read further until
+ * the sink catches up, so memory use stays flat no matter how many recipes are streamed.
+ * Recipes are written in the order the source returns them.
+ *
+ * @author Samuel Lindqvist
+ */
+public class RecipePipeline {
+
+    // marks the end of the source in the buffer
+    private static final Future<byte[]> END = CompletableFuture.completedFuture(null);
+
+    // maximum amount of recipes being shuffled, rendered or waiting to be written
+    private final int bufferSize;
+    // amount of shuffling and rendering threads
+    private final int workers;
+    // shuffle step applied to each recipe before rendering
+    private final Consumer<Recipe> shuffler;
+
+    /**
+     * Constructor, shuffles both ingredients and stages of each recipe
+     * @.pre bufferSize > 0 & workers > 0
+     * @.post true
+     * @param bufferSize maximum amount of recipes in flight
+     * @param workers amount of shuffling threads
+     */
+    public RecipePipeline(int bufferSize, int workers) {
+        this(bufferSize, workers, (r) -> {
+            RecipeUtils.shuffleIngredients(r);
+            RecipeUtils.shuffleStages(r);
+        });
+    }
+
+    /**
+     * Constructor
+     * @.pre bufferSize > 0 & workers > 0 & shuffler != null
+     * @.post true
+     * @param bufferSize maximum amount of recipes in flight
+     * @param workers amount of shuffling threads
+     * @param shuffler shuffle step applied to each recipe
+     */
+    public RecipePipeline(int bufferSize, int workers, Consumer<Recipe> shuffler) {
+        if (bufferSize <= 0 || workers <= 0)
+            throw new IllegalArgumentException("Buffer size and workers must be positive");
+        this.bufferSize = bufferSize;
+        this.workers = workers;
+        this.shuffler = shuffler;
+    }
+
+    /**
+     * Shuffles and writes every recipe of the source to the sink
+     * Returns when the source is exhausted and everything has been written
+     * @.pre source != null & out != null
+     * @.post every recipe from source has been shuffled and written to out, in source order
+     * @param source recipes to stream, only read as fast as the sink consumes them
+     * @param out sink to write the rendered recipes to
+     * @throws IOException if writing to the sink fails
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void run(Iterator<Recipe> source, OutputStream out) throws IOException, InterruptedException {
+        LOG.fine("Streaming recipes with buffer of " + bufferSize);
+
+        BlockingQueue<Future<byte[]>> buffer = new ArrayBlockingQueue<>(bufferSize);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Thread producer = new Thread(() -> {
+            // a failure of the source is passed on to the sink in place of the end marker
+            Future<byte[]> last = END;
+            try {
+                while (source.hasNext()) {
+                    Recipe recipe = source.next();
+                    // blocks while the buffer is full
+                    buffer.put(pool.submit(() -> {
+                        shuffler.accept(recipe);
+                        return render(recipe);
+                    }));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                CompletableFuture<byte[]> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                last = failed;
+            } finally {
+                try {
+                    buffer.put(last);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "recipe-pipeline-source");
+        producer.setDaemon(true);
+        producer.start();
+
+        int count = 0;
+        try {
+            while (true) {
+                Future<byte[]> next = buffer.take();
+                if (next == END) break;
+                out.write(next.get());
+                count++;
+            }
+            out.flush();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to shuffle a recipe", e.getCause());
+        } finally {
+            producer.interrupt();
+            pool.shutdownNow();
+        }
+
+        LOG.info("Streamed " + count + " recipes");
+    }
+
+    /**
+     * Renders the recipe's name, ingredients and stages as UTF-8 text, one per line
+     * @.pre recipe != null
+     * @.post RESULT != null
+     * @param recipe recipe to render
+     * @return the encoded text
+     */
+    static byte[] render(Recipe recipe) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            bytes.write(recipe.getName().getBytes(StandardCharsets.UTF_8));
+            bytes.write('\n');
+            // compressed descriptions are decoded straight into the buffer
+            RecipeUtils.outputRecipeIngredients(recipe, (OutputStream) bytes);
+            RecipeUtils.outputRecipeStages(recipe, (OutputStream) bytes);
+            bytes.write('\n');
+        } catch (IOException e) {
+            // not thrown by ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(RecipePipeline.class.getName());
+}
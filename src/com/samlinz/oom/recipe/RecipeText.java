@@ -0,0 +1,222 @@
+package com.samlinz.oom.recipe;
+
+import com.samlinz.oom.ingredient.Ingredient;
+import com.samlinz.oom.stage.Stage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plain text format for recipes, used for uploading and transferring them
+ *
+ * A recipe starts with its name on a line of its own, followed by
+ * ingredient lines beginning with "- " and stage lines of form
+ * "id: description" or "id < dependency,dependency: description".
+ * Stages have to be listed after their dependencies. Recipes are
+ * separated by empty lines.
+ *
+ * Chili sin carne
+ * - 1 kpl, iso sipuli
+ * 1: hienonna sipuli
+ * 2 < 1: kullota sipulit öljyssä
+ *
+ * @author Samuel Lindqvist
+ */
+public class RecipeText {
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private RecipeText() {
+    }
+
+    /**
+     * Parses every recipe from the given text
+     * Recipes are created with RecipeFactory and finished
+     * @.pre in != null
+     * @.post FORALL(r : RESULT; r has been finished)
+     * @param in text to parse
+     * @return list of parsed recipes
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the text is malformed
+     */
+    public static List<Recipe> parse(Reader in) throws IOException {
+        RecipeBuilder builder = new RecipeBuilder();
+        List<Recipe> result = new ArrayList<>();
+        for (Lines r : read(in)) {
+            result.add(builder.build(r.name, r.ingredients(), r.stageCount, r.ids, r.descriptions,
+                    r.depOffsets, r.depIds));
+        }
+        return result;
+    }
+
+    /**
+     * Parses a single recipe which keeps the given id
+     * Unlike with parse(), the recipe is not created through RecipeFactory: it takes no id
+     * from the factory, the journal does not record it and the catalog does not register it
+     * @.pre in != null
+     * @.post RESULT.getId() == id & RESULT has been finished
+     * @param in text to parse
+     * @param id id of the recipe
+     * @return the parsed recipe
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the text is malformed or does not hold exactly one recipe
+     */
+    public static Recipe parseDetached(Reader in, int id) throws IOException {
+        List<Lines> read = read(in);
+        if (read.size() != 1) throw new IllegalArgumentException("Expected one recipe, got " + read.size());
+        Lines r = read.get(0);
+        return new RecipeBuilder().buildDetached(id, r.name, r.ingredients(), r.stageCount, r.ids,
+                r.descriptions, r.depOffsets, r.depIds);
+    }
+
+    /**
+     * Parses every recipe from the given text without RecipeFactory, as parseDetached(Reader, int)
+     * The recipes are numbered by their position in the text, from 0, for texts which
+     * are only rendered and then dropped, such as uploads
+     * @.pre in != null
+     * @.post FORALL(i : 0 <= i < RESULT.size(); RESULT.get(i).getId() == i & it has been finished)
+     * @param in text to parse
+     * @return list of parsed recipes
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the text is malformed
+     */
+    public static List<Recipe> parseDetached(Reader in) throws IOException {
+        RecipeBuilder builder = new RecipeBuilder();
+        List<Lines> read = read(in);
+        List<Recipe> result = new ArrayList<>(read.size());
+        for (Lines r : read) {
+            result.add(builder.buildDetached(result.size(), r.name, r.ingredients(), r.stageCount, r.ids,
+                    r.descriptions, r.depOffsets, r.depIds));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the lines of every recipe in the text
+     */
+    private static List<Lines> read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        List<Lines> result = new ArrayList<>();
+        Lines current = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                if (current != null) result.add(current);
+                current = null;
+            } else if (current == null) {
+                current = new Lines(line.trim());
+            } else if (line.startsWith("- ")) {
+                current.ingredients.add(line.substring(2));
+            } else {
+                parseStage(current, line, lineNumber);
+            }
+        }
+        if (current != null) result.add(current);
+        return result;
+    }
+
+    /**
+     * Parses a single stage line and adds it to the recipe's lines
+     */
+    private static void parseStage(Lines recipe, String line, int lineNumber) {
+        int colon = line.indexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("Line " + lineNumber + ": expected 'id: description'");
+        String head = line.substring(0, colon);
+        String description = line.substring(colon + 1).trim();
+        int[] dependencies = new int[0];
+        int lt = head.indexOf('<');
+        try {
+            if (lt >= 0) {
+                String[] deps = head.substring(lt + 1).split(",");
+                dependencies = new int[deps.length];
+                for (int i = 0; i < deps.length; i++) {
+                    dependencies[i] = Integer.parseInt(deps[i].trim());
+                }
+                head = head.substring(0, lt);
+            }
+            int id = Integer.parseInt(head.trim());
+            for (int d : dependencies) {
+                if (!recipe.seen.contains(d))
+                    throw new IllegalArgumentException("Line " + lineNumber
+                            + ": stage " + id + " depends on unknown stage " + d);
+            }
+            if (!recipe.seen.add(id))
+                throw new IllegalArgumentException("Line " + lineNumber + ": stage " + id + " is repeated");
+            recipe.addStage(id, description, dependencies);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": malformed stage id", e);
+        }
+    }
+
+    /**
+     * Formats the recipe in the text format, stages in their current order
+     * @.pre recipe != null & the current stage order respects the dependencies
+     * @.post parse(format(recipe)) gives an equal recipe
+     * @param recipe recipe to format
+     * @param out builder to append the text to
+     */
+    public static void format(Recipe recipe, StringBuilder out) {
+        out.append(recipe.getName()).append('\n');
+        for (Ingredient i : recipe.getIngredients()) {
+            out.append("- ").append(i.getDescription()).append('\n');
+        }
+        for (Stage s : recipe.getStages()) {
+            out.append(s.getId());
+            List<Stage> parents = s.getParents();
+            for (int i = 0; i < parents.size(); i++) {
+                out.append(i == 0 ? " < " : ",").append(parents.get(i).getId());
+            }
+            out.append(": ").append(s.getDescription()).append('\n');
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Lines of a single recipe, with the stages in the arrays RecipeBuilder takes
+     */
+    private static class Lines {
+
+        final String name;
+        final List<String> ingredients = new ArrayList<>();
+        // ids of the stages so far
+        final Set<Integer> seen = new HashSet<>();
+        int stageCount;
+        int[] ids = new int[8];
+        String[] descriptions = new String[8];
+        int[] depOffsets = new int[9];
+        int[] depIds = new int[8];
+
+        Lines(String name) {
+            this.name = name;
+        }
+
+        void addStage(int id, String description, int[] dependencies) {
+            if (stageCount == ids.length) {
+                ids = Arrays.copyOf(ids, stageCount * 2);
+                descriptions = Arrays.copyOf(descriptions, stageCount * 2);
+                depOffsets = Arrays.copyOf(depOffsets, stageCount * 2 + 1);
+            }
+            int edges = depOffsets[stageCount];
+            if (edges + dependencies.length > depIds.length)
+                depIds = Arrays.copyOf(depIds, Math.max(edges + dependencies.length, depIds.length * 2));
+            System.arraycopy(dependencies, 0, depIds, edges, dependencies.length);
+            ids[stageCount] = id;
+            descriptions[stageCount] = description;
+            depOffsets[++stageCount] = edges + dependencies.length;
+        }
+
+        String[] ingredients() {
+            return ingredients.toArray(new String[0]);
+        }
+    }
+}
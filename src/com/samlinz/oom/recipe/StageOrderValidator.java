@@ -0,0 +1,204 @@
+package com.samlinz.oom.recipe;
+
+import com.samlinz.oom.stage.Stage;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Validates that a candidate order of stages respects every
+ * dependency set with Stage.getParents()
+ *
+ * The recipe's stages are compiled once into a compact parent index,
+ * stage positions of the candidate order are stored in a plain int array
+ * and every parent edge is checked exactly once, so a single validation is O(V+E)
+ *
+ * Dependencies on stages which are not in the recipe, or null ones left by an unknown
+ * dependency id, are ignored, as RecipeUtils.getShuffledStages() ignores them
+ *
+ * Orders can be given either as a list of Stage objects, for example the result
+ * of RecipeUtils.shuffleStages(), or as a permutation array of indices into
+ * the recipe's current getStages() list
+ *
+ * @author Samuel Lindqvist
+ */
+public class StageOrderValidator {
+
+    /**
+     * Represents a single violated dependency, the child stage
+     * has been placed before its parent stage
+     */
+    public static class Violation {
+
+        // the dependency which should have come first
+        private final Stage parent;
+        // the dependent stage which came too early
+        private final Stage child;
+        // position of the child in the candidate order
+        private final int childPosition;
+
+        Violation(Stage parent, Stage child, int childPosition) {
+            this.parent = parent;
+            this.child = child;
+            this.childPosition = childPosition;
+        }
+
+        /**
+         * @.pre true
+         * @.post RESULT != null
+         * @return the parent stage of the violated edge
+         */
+        public Stage getParent() {
+            return parent;
+        }
+
+        /**
+         * @.pre true
+         * @.post RESULT != null
+         * @return the child stage of the violated edge
+         */
+        public Stage getChild() {
+            return child;
+        }
+
+        /**
+         * @.pre true
+         * @.post RESULT >= 0
+         * @return index of the child stage in the candidate order
+         */
+        public int getChildPosition() {
+            return childPosition;
+        }
+
+        @Override
+        public String toString() {
+            return "stage " + child.getId() + " at " + childPosition
+                    + " precedes its dependency " + parent.getId();
+        }
+    }
+
+    /**
+     * Constructor, disallow instatiation
+     */
+    private StageOrderValidator() {
+    }
+
+    /**
+     * Checks that the given order of stages is a valid order of the recipe's stages
+     * @.pre recipe != null & order != null
+     * @.post RESULT == null if every stage is preceded by all of its parents
+     * @param recipe recipe which stages are ordered
+     * @param order candidate order, must contain each stage of the recipe exactly once
+     * @return the first violated dependency in the candidate order, or null if the order is valid
+     * @throws IllegalArgumentException if the order is not a permutation of the recipe's stages
+     */
+    public static Violation validate(Recipe recipe, List<Stage> order) {
+        ParentIndex index = new ParentIndex(recipe.getStages());
+        int[] permutation = new int[order.size()];
+        for (int i = 0; i < permutation.length; i++) {
+            Integer idx = index.indices.get(order.get(i));
+            if (idx == null)
+                throw new IllegalArgumentException("Stage " + order.get(i).getId()
+                        + " does not belong to recipe " + recipe.getId());
+            permutation[i] = idx;
+        }
+        return index.validate(permutation);
+    }
+
+    /**
+     * Checks that the given permutation of the recipe's stages is a valid order
+     * @.pre recipe != null & permutation != null
+     * @.post RESULT == null if every stage is preceded by all of its parents
+     * @param recipe recipe which stages are ordered
+     * @param permutation indices into recipe.getStages(), in the candidate order
+     * @return the first violated dependency in the candidate order, or null if the order is valid
+     * @throws IllegalArgumentException if the array is not a permutation of the recipe's stages
+     */
+    public static Violation validate(Recipe recipe, int[] permutation) {
+        return new ParentIndex(recipe.getStages()).validate(permutation);
+    }
+
+    /**
+     * Validates a batch of permutations in parallel
+     * The recipe is indexed only once and shared between the worker threads
+     * @.pre recipe != null & permutations != null
+     * @.post RESULT.length == permutations.size()
+     * @param recipe recipe which stages are ordered
+     * @param permutations candidate orders as indices into recipe.getStages()
+     * @return array of first violations, null entries mark valid orders
+     * @throws IllegalArgumentException if some array is not a permutation of the recipe's stages
+     */
+    public static Violation[] validateAll(Recipe recipe, List<int[]> permutations) {
+        ParentIndex index = new ParentIndex(recipe.getStages());
+        Violation[] result = new Violation[permutations.size()];
+        IntStream.range(0, result.length).parallel().forEach((i) -> {
+            result[i] = index.validate(permutations.get(i));
+        });
+        return result;
+    }
+
+    /**
+     * Compact read-only form of the recipe's dependency graph
+     * Parents of stage i are parents[offsets[i]] ... parents[offsets[i + 1] - 1]
+     */
+    private static class ParentIndex {
+
+        private final Stage[] stages;
+        private final Map<Stage, Integer> indices;
+        private final int[] offsets;
+        private final int[] parents;
+
+        ParentIndex(List<Stage> stageList) {
+            stages = stageList.toArray(new Stage[0]);
+            indices = new IdentityHashMap<>(stages.length);
+            for (int i = 0; i < stages.length; i++) {
+                indices.put(stages[i], i);
+            }
+            // only the dependencies inside the recipe are kept, as the shuffler does
+            int edges = 0;
+            for (Stage s : stages) {
+                for (Stage p : s.getParents()) {
+                    if (p != null && indices.containsKey(p)) edges++;
+                }
+            }
+            offsets = new int[stages.length + 1];
+            parents = new int[edges];
+            int e = 0;
+            for (int i = 0; i < stages.length; i++) {
+                offsets[i] = e;
+                for (Stage p : stages[i].getParents()) {
+                    Integer idx = p != null ? indices.get(p) : null;
+                    if (idx != null) parents[e++] = idx;
+                }
+            }
+            offsets[stages.length] = e;
+        }
+
+        Violation validate(int[] permutation) {
+            if (permutation.length != stages.length)
+                throw new IllegalArgumentException("Order has " + permutation.length
+                        + " stages, recipe has " + stages.length);
+            // position of each stage in the candidate order
+            int[] positions = new int[stages.length];
+            for (int i = 0; i < positions.length; i++) positions[i] = -1;
+            for (int i = 0; i < permutation.length; i++) {
+                int s = permutation[i];
+                if (s < 0 || s >= stages.length || positions[s] != -1)
+                    throw new IllegalArgumentException("Index " + s + " at " + i + " is out of range or duplicate");
+                positions[s] = i;
+            }
+            for (int i = 0; i < permutation.length; i++) {
+                int s = permutation[i];
+                for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                    int p = parents[e];
+                    if (positions[p] > i) {
+                        return new Violation(stages[p], stages[s], i);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
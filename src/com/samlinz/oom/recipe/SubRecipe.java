@@ -0,0 +1,245 @@
+package com.samlinz.oom.recipe;
+
+import com.samlinz.oom.stage.Stage;
+import com.samlinz.oom.stage.StageFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Immutable, shared sequence of stages which many recipes repeat,
+ * for example the same preparation steps at the start of every soup
+ *
+ * Sub-recipes are hash-consed: of() returns the one canonical instance for each
+ * structure, so a template used by thousands of recipes is stored once. The interning
+ * is weak, a sub-recipe which no recipe refers to any more is collected.
+ *
+ * Recipes refer to the sub-recipe with Recipe.addSubRecipe() and get its stages only
+ * when their stages are needed. A recipe which uses the sub-recipe on its own, so that
+ * it depends on no stage of the recipe and no stage of the recipe depends on it, gets
+ * the one linked set of stages that all such recipes share. The stages of a use at
+ * other ids, or linked to the rest of the recipe, are created for the recipe alone.
+ * Shared stages are frozen, changing one throws IllegalStateException. Recipe gives itself
+ * copies before it links other stages to them.
+ *
+ * Stages of a sub-recipe are numbered from 0, a stage may only depend on stages before it.
+ *
+ * @author Samuel Lindqvist
+ */
+public final class SubRecipe {
+
+    // canonical instances by structure, weakly held, guarded by itself
+    private static final Map<SubRecipe, WeakReference<SubRecipe>> CANONICAL = new WeakHashMap<>();
+
+    private final String[] descriptions;
+    // dependencies of stage i are dependencies[offsets[i]] ... dependencies[offsets[i + 1] - 1]
+    private final int[] offsets;
+    private final int[] dependencies;
+    private final int hash;
+    // stages shared by the recipes which use the sub-recipe on its own, null until first used
+    private volatile Stage[] shared;
+
+    private SubRecipe(String[] descriptions, int[] offsets, int[] dependencies) {
+        this.descriptions = descriptions;
+        this.offsets = offsets;
+        this.dependencies = dependencies;
+        this.hash = 31 * (31 * Arrays.hashCode(descriptions) + Arrays.hashCode(offsets)) + Arrays.hashCode(dependencies);
+    }
+
+    /**
+     * Returns the canonical sub-recipe of the given structure
+     * @.pre descriptions != null & dependencies.length == descriptions.length &
+     *          FORALL(i : dependencies; FORALL(d : dependencies[i]; 0 <= d < i))
+     * @.post RESULT is the same object for every structurally equal call
+     * @param descriptions stage descriptions
+     * @param dependencies local indices of the dependencies of each stage, null for none
+     * @return the canonical sub-recipe
+     * @throws IllegalArgumentException if a dependency is not an earlier stage
+     */
+    public static SubRecipe of(String[] descriptions, int[][] dependencies) {
+        if (dependencies.length != descriptions.length)
+            throw new IllegalArgumentException("Expected dependencies of " + descriptions.length + " stages");
+        int[] offsets = new int[descriptions.length + 1];
+        int edges = 0;
+        for (int i = 0; i < descriptions.length; i++) {
+            if (descriptions[i] == null) throw new IllegalArgumentException("Stage " + i + " has no description");
+            offsets[i] = edges;
+            if (dependencies[i] != null) edges += dependencies[i].length;
+        }
+        offsets[descriptions.length] = edges;
+        int[] flat = new int[edges];
+        for (int i = 0; i < descriptions.length; i++) {
+            if (dependencies[i] == null) continue;
+            for (int k = 0; k < dependencies[i].length; k++) {
+                int d = dependencies[i][k];
+                if (d < 0 || d >= i)
+                    throw new IllegalArgumentException("Stage " + i + " depends on " + d + " which is not an earlier stage");
+                flat[offsets[i] + k] = d;
+            }
+        }
+        SubRecipe candidate = new SubRecipe(descriptions.clone(), offsets, flat);
+        synchronized (CANONICAL) {
+            WeakReference<SubRecipe> ref = CANONICAL.get(candidate);
+            SubRecipe canonical = ref != null ? ref.get() : null;
+            if (canonical != null) return canonical;
+            CANONICAL.put(candidate, new WeakReference<>(candidate));
+            return candidate;
+        }
+    }
+
+    /**
+     * Returns the canonical sub-recipe of a simple sequence,
+     * every stage depends on the one before it
+     * @.pre descriptions != null
+     * @.post RESULT is the same object for every equal sequence
+     * @param descriptions stage descriptions in order
+     * @return the canonical sub-recipe
+     */
+    public static SubRecipe sequence(String... descriptions) {
+        int[][] dependencies = new int[descriptions.length][];
+        for (int i = 1; i < descriptions.length; i++) {
+            dependencies[i] = new int[] { i - 1 };
+        }
+        return of(descriptions, dependencies);
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of distinct sub-recipes still in use
+     */
+    public static int getCanonicalCount() {
+        synchronized (CANONICAL) {
+            return CANONICAL.size();
+        }
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of stages
+     */
+    public int size() {
+        return descriptions.length;
+    }
+
+    /**
+     * @.pre 0 <= stage < size()
+     * @.post RESULT != null
+     * @param stage local index of the stage
+     * @return description of the stage
+     */
+    public String getDescription(int stage) {
+        return descriptions[stage];
+    }
+
+    /**
+     * @.pre 0 <= stage < size()
+     * @.post RESULT != null
+     * @param stage local index of the stage
+     * @return local indices of the stage's dependencies
+     */
+    public int[] getDependencies(int stage) {
+        return Arrays.copyOfRange(dependencies, offsets[stage], offsets[stage + 1]);
+    }
+
+    /**
+     * @.pre 0 <= stage < size()
+     * @.post true
+     * @param stage local index of the stage
+     * @return true if the stage does not depend on another stage of the sub-recipe
+     */
+    public boolean isRoot(int stage) {
+        return offsets[stage] == offsets[stage + 1];
+    }
+
+    /**
+     * Creates the stages of one use of the sub-recipe
+     * @.pre rootParents != null
+     * @.post RESULT.length == size() & ids are firstId ... firstId + size() - 1
+     * @param firstId id of the first stage
+     * @param rootParents stages which the root stages of the sub-recipe depend on
+     * @return the new stages, the children are not linked
+     */
+    Stage[] instantiate(int firstId, List<Stage> rootParents) {
+        Stage[] created = new Stage[descriptions.length];
+        for (int i = 0; i < created.length; i++) {
+            Stage s = StageFactory.getStage(firstId + i, descriptions[i]);
+            if (offsets[i] == offsets[i + 1]) {
+                for (Stage p : rootParents) s.addParent(p);
+            } else {
+                for (int e = offsets[i]; e < offsets[i + 1]; e++) s.addParent(created[dependencies[e]]);
+            }
+            created[i] = s;
+        }
+        return created;
+    }
+
+    /**
+     * Returns the stages shared by the uses of the sub-recipe on its own
+     * The first use decides the ids of the shared stages
+     * @.pre true
+     * @.post RESULT == null | (RESULT.length == size() & the stages are linked and frozen)
+     * @param firstId id of the first stage
+     * @return the shared stages, null if they have other ids
+     */
+    Stage[] shared(int firstId) {
+        Stage[] stages = shared;
+        if (stages == null) {
+            synchronized (this) {
+                if (shared == null) {
+                    int n = descriptions.length;
+                    int[] ids = new int[n];
+                    for (int i = 0; i < n; i++) ids[i] = firstId + i;
+                    Stage[] built = StageFactory.buildStages(n, ids, descriptions, offsets, dependencies, new int[n]);
+                    for (Stage s : built) s.freeze();
+                    shared = built;
+                }
+                stages = shared;
+            }
+        }
+        return stages.length == 0 || stages[0].getId() == firstId ? stages : null;
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @return the shared stages, null if no recipe has used them yet
+     */
+    Stage[] sharedStages() {
+        return shared;
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT != null
+     * @return the stage descriptions, for display
+     */
+    public List<String> getDescriptions() {
+        return Arrays.asList(descriptions.clone());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SubRecipe)) return false;
+        SubRecipe other = (SubRecipe) o;
+        return hash == other.hash
+                && Arrays.equals(descriptions, other.descriptions)
+                && Arrays.equals(offsets, other.offsets)
+                && Arrays.equals(dependencies, other.dependencies);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "SubRecipe" + Arrays.toString(descriptions);
+    }
+}
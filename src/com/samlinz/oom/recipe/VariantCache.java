@@ -0,0 +1,305 @@
+package com.samlinz.oom.recipe;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded concurrent cache of rendered recipe variants
+ *
+ * Variants are keyed by recipe id, seed and the recipe's version stamp, so a changed
+ * recipe never returns stale output. The cache holds the encoded bytes of
+ * RecipeUtils.renderVariant() and is bounded by their total size.
+ *
+ * Eviction is frequency aware in the manner of TinyLFU: a small count-min sketch
+ * estimates how often each key has been requested recently. When the cache is full the
+ * oldest entry is compared against the newly added one, and whichever is requested
+ * less often is dropped, an old entry which wins gets a second chance at the back of the queue.
+ * One-off variants therefore can not flush out the popular ones.
+ *
+ * Concurrent misses of the same key are rendered only once, the other threads
+ * wait for the first one's result.
+ *
+ * @author Samuel Lindqvist
+ */
+public class VariantCache {
+
+    // maximum total size of the cached variants in bytes
+    private final long maxWeight;
+    // current total size of the cached variants
+    private final AtomicLong weight = new AtomicLong();
+    // cached and in-flight variants
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    // completed entries, oldest first
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+    // only one thread evicts at a time
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // recent request frequencies
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor
+     * @.pre maxWeight > 0
+     * @.post getWeight() == 0
+     * @param maxWeight maximum total size of the cached variants in bytes
+     */
+    public VariantCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+        // roughly one counter per kilobyte of cache, as a power of two
+        long expected = Math.max(256, Math.min(1 << 20, maxWeight / 1024));
+        this.sketch = new FrequencySketch(Long.highestOneBit(expected) == expected
+                ? (int) expected : (int) Long.highestOneBit(expected) << 1);
+    }
+
+    /**
+     * Returns the rendered variant of the recipe, rendering it if it is not cached
+     * @.pre recipe != null
+     * @.post RESULT equals RecipeUtils.renderVariant(recipe, seed)
+     * @param recipe recipe to render
+     * @param seed seed of the variant
+     * @return the encoded text of the variant, must not be modified
+     */
+    public byte[] get(Recipe recipe, long seed) {
+        Key key = new Key(recipe.getId(), seed, recipe.getVersion());
+        sketch.increment(key.hashCode());
+
+        Entry existing = entries.get(key);
+        if (existing == null) {
+            Entry created = new Entry(key);
+            existing = entries.putIfAbsent(key, created);
+            if (existing == null) {
+                misses.increment();
+                return load(created, recipe, seed);
+            }
+        }
+        hits.increment();
+        try {
+            return existing.value.join();
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Renders the variant of a new entry and publishes it
+     */
+    private byte[] load(Entry entry, Recipe recipe, long seed) {
+        byte[] bytes;
+        try {
+            bytes = RecipeUtils.renderVariant(recipe, seed);
+        } catch (RuntimeException e) {
+            entries.remove(entry.key, entry);
+            entry.value.completeExceptionally(e);
+            throw e;
+        }
+        entry.value.complete(bytes);
+        synchronized (entry) {
+            // invalidated while rendering, remove() has already taken out its weight of 0
+            if (entry.removed) return bytes;
+            entry.weight = bytes.length;
+            weight.addAndGet(bytes.length);
+        }
+        order.add(entry);
+        evict(entry);
+        return bytes;
+    }
+
+    /**
+     * Evicts entries until the cache fits in its bounds
+     * @param candidate the newly added entry
+     */
+    private void evict(Entry candidate) {
+        if (weight.get() <= maxWeight || !evictionLock.tryLock()) return;
+        try {
+            // each entry gets at most one second chance per eviction round
+            int chances = order.size();
+            while (weight.get() > maxWeight) {
+                Entry victim = order.poll();
+                if (victim == null) break;
+                // already removed
+                if (entries.get(victim.key) != victim) continue;
+                if (victim != candidate && candidate != null && chances-- > 0
+                        && sketch.frequency(victim.key.hashCode()) > sketch.frequency(candidate.key.hashCode())) {
+                    // the newcomer is less popular, keep the old entry
+                    order.add(victim);
+                    remove(candidate);
+                    candidate = null;
+                    continue;
+                }
+                remove(victim);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every cached variant of the recipe id
+     * Needed when a recipe object is replaced by another one with the same id,
+     * since the version stamps of different objects may coincide
+     * @.pre true
+     * @.post no variant of the recipe id is cached
+     * @param recipeId id of the recipe
+     */
+    public void invalidate(int recipeId) {
+        for (Entry e : entries.values()) {
+            if (e.key.recipeId == recipeId) remove(e);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            // the weight is added and taken out under the entry's lock, exactly once
+            synchronized (entry) {
+                entry.removed = true;
+                weight.addAndGet(-entry.weight);
+            }
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return total size of the cached variants in bytes
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of requests which were served from the cache or an in-flight render
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of requests which had to render the variant
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT >= 0
+     * @return amount of variants dropped to keep the cache in its bounds
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "entries=" + entries.size() + " bytes=" + getWeight()
+                + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+    }
+
+    /**
+     * Cache key, a single variant of a single version of a recipe
+     */
+    private static final class Key {
+
+        private final int recipeId;
+        private final long seed;
+        private final int version;
+
+        Key(int recipeId, long seed, int version) {
+            this.recipeId = recipeId;
+            this.seed = seed;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return recipeId == k.recipeId && seed == k.seed && version == k.version;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = seed * 0x9E3779B97F4A7C15L + recipeId * 31L + version;
+            h ^= h >>> 32;
+            return (int) (h * 0x9E3779B97F4A7C15L >>> 32);
+        }
+    }
+
+    /**
+     * Cached variant, completed once it has been rendered
+     */
+    private static final class Entry {
+
+        private final Key key;
+        private final CompletableFuture<byte[]> value = new CompletableFuture<>();
+        // size of the value, counted in the cache's weight, guarded by the entry
+        private int weight;
+        // taken out of the cache, its weight must not be counted any more, guarded by the entry
+        private boolean removed;
+
+        Entry(Key key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Count-min sketch of request frequencies with four rows
+     * Counters are halved periodically so that old popularity fades away
+     * Updates are not synchronized, a lost increment only makes the estimate a bit lower
+     */
+    private static final class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xC3A5C85C};
+
+        private final int[] counters;
+        private final int mask;
+        // increments before the counters are halved
+        private final int resetAt;
+        private int increments;
+
+        FrequencySketch(int width) {
+            counters = new int[DEPTH * width];
+            mask = width - 1;
+            resetAt = width * 10;
+        }
+
+        void increment(int hash) {
+            for (int i = 0; i < DEPTH; i++) {
+                counters[index(hash, i)]++;
+            }
+            if (++increments >= resetAt) {
+                increments = 0;
+                for (int i = 0; i < counters.length; i++) counters[i] >>>= 1;
+            }
+        }
+
+        int frequency(int hash) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters[index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
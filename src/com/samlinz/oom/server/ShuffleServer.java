@@ -0,0 +1,309 @@
+package com.samlinz.oom.server;
+
+import com.samlinz.oom.metrics.LatencyHistogram;
+import com.samlinz.oom.metrics.MetricsRegistry;
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.recipe.RecipeText;
+import com.samlinz.oom.recipe.RecipeUtils;
+import com.samlinz.oom.recipe.VariantCache;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded HTTP server which serves shuffled recipe variants
+ *
+ * Endpoints
+ * GET  /recipes/{id}?seed=n  shuffled variant of a loaded recipe, random seed if none is given,
+ *                            variants with an explicit seed are cached
+ * POST /shuffle?seed=n       shuffles every recipe of the body, given in RecipeText format
+ * GET  /stats                request counts, cache counters and every metric of the default registry
+ *
+ * Uploads are limited in size and in lines, so that the work of a single request stays
+ * bounded, larger ones are answered with 413. Every order is validated before it is sent.
+ *
+ * Requests are handled on a fixed pool of threads. When more than maxQueued requests
+ * are waiting for a thread, the ones over the limit are answered immediately with 503
+ * so that an overloaded server sheds load instead of letting the queue and latency grow
+ * without bounds.
+ *
+ * @author Samuel Lindqvist
+ */
+public class ShuffleServer {
+
+    // largest accepted upload in bytes
+    static final int MAX_UPLOAD_BYTES = 1 << 20;
+    // largest accepted upload in lines, parsing and linking the stages grow with it
+    static final int MAX_UPLOAD_LINES = 10_000;
+
+    // recipes served by id
+    private final Map<Integer, Recipe> recipes = new ConcurrentHashMap<>();
+    // admission control, maximum amount of requests waiting for a thread
+    private final int maxQueued;
+    // amount of requests waiting for a thread
+    private final AtomicInteger queued = new AtomicInteger();
+    // latencies of admitted requests
+    private final LatencyHistogram latencies = MetricsRegistry.getDefault().histogram("server.request");
+    // amount of rejected requests
+    private final LongAdder rejected = MetricsRegistry.getDefault().counter("server.rejected");
+    // rendered variants of the served recipes
+    private final VariantCache cache;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Constructor, the server is not started until start() is called
+     * @.pre address != null & threads > 0 & maxQueued >= 0 & cacheBytes > 0
+     * @.post true
+     * @param address address to listen to
+     * @param threads amount of request handling threads
+     * @param maxQueued maximum amount of requests waiting for a thread
+     * @param cacheBytes maximum total size of cached variants
+     * @throws IOException if the address can not be bound
+     */
+    public ShuffleServer(InetSocketAddress address, int threads, int maxQueued, long cacheBytes) throws IOException {
+        this.maxQueued = maxQueued;
+        this.cache = new VariantCache(cacheBytes);
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(address, 1024);
+        server.setExecutor((task) -> {
+            queued.incrementAndGet();
+            executor.execute(task);
+        });
+        server.createContext("/recipes/", admitted(this::handleRecipe));
+        server.createContext("/shuffle", admitted(this::handleShuffle));
+        server.createContext("/stats", admitted(this::handleStats));
+    }
+
+    /**
+     * Makes a recipe available from /recipes/{id}
+     * @.pre recipe != null
+     * @.post the recipe is served with its id
+     * @param recipe recipe to serve
+     */
+    public void addRecipe(Recipe recipe) {
+        recipes.put(recipe.getId(), recipe);
+    }
+
+    /**
+     * Starts serving requests
+     * @.pre true
+     * @.post the server accepts connections
+     */
+    public void start() {
+        server.start();
+        LOG.info("Shuffle server listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops the server, waiting at most the given time for requests in progress
+     * @.pre seconds >= 0
+     * @.post the server does not accept connections
+     * @param seconds time to wait for requests in progress
+     */
+    public void stop(int seconds) {
+        server.stop(seconds);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT != null
+     * @return histogram of the handling times of admitted requests
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Wraps a handler with admission control and latency recording
+     */
+    private HttpHandler admitted(HttpHandler handler) {
+        return (exchange) -> {
+            // requests which were queued behind too many others are turned away
+            if (queued.getAndDecrement() > maxQueued) {
+                rejected.increment();
+                respond(exchange, 503, "Server busy\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                handler.handle(exchange);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IllegalStateException e) {
+                LOG.warning(e.getMessage());
+                respond(exchange, 500, (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (RuntimeException e) {
+                // a bug, but the exchange must still be answered and closed
+                LOG.log(Level.SEVERE, "Request " + exchange.getRequestURI() + " failed", e);
+                respond(exchange, 500, "Internal error\n".getBytes(StandardCharsets.UTF_8));
+            } finally {
+                latencies.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * GET /recipes/{id}?seed=n
+     */
+    private void handleRecipe(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, new byte[0]);
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        int id;
+        try {
+            id = Integer.parseInt(path.substring("/recipes/".length()));
+        } catch (NumberFormatException e) {
+            respond(exchange, 404, new byte[0]);
+            return;
+        }
+        Recipe recipe = recipes.get(id);
+        if (recipe == null) {
+            respond(exchange, 404, ("No recipe " + id + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        Long seed = seed(exchange);
+        respond(exchange, 200, seed != null
+                ? cache.get(recipe, seed)
+                : RecipeUtils.renderVariant(recipe, ThreadLocalRandom.current().nextLong()));
+    }
+
+    /**
+     * POST /shuffle?seed=n
+     */
+    private void handleShuffle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, new byte[0]);
+            return;
+        }
+        byte[] body = readUpload(exchange);
+        if (body == null) {
+            respond(exchange, 413, ("Upload larger than " + MAX_UPLOAD_BYTES + " bytes or "
+                    + MAX_UPLOAD_LINES + " lines\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        List<Recipe> uploaded;
+        try (Reader in = new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8)) {
+            // uploads are only rendered, they must not reach the factory, catalog or journal
+            uploaded = RecipeText.parseDetached(in);
+        }
+        Long seed = seed(exchange);
+        if (seed == null) seed = ThreadLocalRandom.current().nextLong();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Recipe r : uploaded) {
+            out.write(RecipeUtils.renderVariant(r, seed));
+            out.write('\n');
+        }
+        respond(exchange, 200, out.toByteArray());
+    }
+
+    /**
+     * GET /stats
+     */
+    private void handleStats(HttpExchange exchange) throws IOException {
+        String stats = "recipes=" + recipes.size() + "\n"
+                + "rejected=" + rejected.sum() + "\n"
+                + "cache " + cache + "\n"
+                + "latency " + latencies + "\n"
+                + MetricsRegistry.getDefault().dump();
+        respond(exchange, 200, stats.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the request body, null if it is over the upload limits
+     */
+    private static byte[] readUpload(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int lines = 0;
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                if (body.size() + n > MAX_UPLOAD_BYTES) return null;
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == '\n') lines++;
+                }
+                if (lines > MAX_UPLOAD_LINES) return null;
+                body.write(chunk, 0, n);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Reads the seed query parameter, null if it is missing
+     */
+    private static Long seed(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith("seed=")) {
+                    try {
+                        return Long.parseLong(param.substring("seed=".length()));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Malformed seed");
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    /**
+     * Starts a server
+     * Usage: ShuffleServer port [recipe file in RecipeText format]
+     * @param args command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int threads = Runtime.getRuntime().availableProcessors() * 4;
+        ShuffleServer shuffleServer = new ShuffleServer(new InetSocketAddress("localhost", port), threads, threads * 16, 64L << 20);
+        if (args.length > 1) {
+            try (Reader in = new InputStreamReader(new FileInputStream(args[1]), StandardCharsets.UTF_8)) {
+                for (Recipe r : RecipeText.parse(in)) {
+                    shuffleServer.addRecipe(r);
+                }
+            }
+        }
+        shuffleServer.start();
+    }
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(ShuffleServer.class.getName());
+}
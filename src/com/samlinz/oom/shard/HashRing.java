@@ -0,0 +1,77 @@
+package com.samlinz.oom.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Consistent hash ring which maps recipe ids to nodes
+ *
+ * Each node is placed on the ring at several points, a recipe belongs to the first
+ * node point at or after the hash of its id. Adding a node only takes over the ids
+ * falling just before its own points, so roughly 1/N of the recipes move.
+ *
+ * Not thread-safe, ShardedCatalog guards it.
+ *
+ * @author Samuel Lindqvist
+ */
+class HashRing {
+
+    // points per node, more points spread the load more evenly
+    private final int pointsPerNode;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> nodes = new LinkedHashSet<>();
+
+    HashRing(int pointsPerNode) {
+        this.pointsPerNode = pointsPerNode;
+    }
+
+    void addNode(String node) {
+        if (!nodes.add(node)) return;
+        for (int i = 0; i < pointsPerNode; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    void removeNode(String node) {
+        if (!nodes.remove(node)) return;
+        for (int i = 0; i < pointsPerNode; i++) {
+            ring.remove(hash(node + "#" + i));
+        }
+    }
+
+    /**
+     * @return the node which owns the recipe id, null if the ring is empty
+     */
+    String ownerOf(int recipeId) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, String> e = ring.ceilingEntry(mix(recipeId));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    Collection<String> getNodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    private static long hash(String key) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        crc.update(bytes, 0, bytes.length);
+        return mix(crc.getValue());
+    }
+
+    /**
+     * Spreads consecutive values evenly over the ring
+     */
+    private static long mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,223 @@
+package com.samlinz.oom.shard;
+
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.recipe.RecipeText;
+import com.samlinz.oom.recipe.VariantCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single shard of the recipe catalog, run as its own process
+ * Holds the recipes routed to it by ShardedCatalog and serves them over a local socket
+ *
+ * Usage: ShardNode port [cache bytes]
+ *
+ * @author Samuel Lindqvist
+ */
+public class ShardNode {
+
+    // recipes of this shard by id
+    private final Map<Integer, Recipe> recipes = new ConcurrentHashMap<>();
+    // rendered variants
+    private final VariantCache cache;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool((r) -> {
+        Thread t = new Thread(r, "shard-connection");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor, binds the socket to the loopback address
+     * @.pre port >= 0 & cacheBytes > 0
+     * @.post true
+     * @param port port to listen to, 0 for any free port
+     * @param cacheBytes maximum total size of cached variants
+     * @throws IOException if the port can not be bound
+     */
+    public ShardNode(int port, long cacheBytes) throws IOException {
+        serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        cache = new VariantCache(cacheBytes);
+    }
+
+    /**
+     * @.pre true
+     * @.post RESULT > 0
+     * @return port the node listens to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the socket is closed
+     * @.pre true
+     * @.post the socket is closed
+     */
+    public void serve() {
+        LOG.info("Shard node listening on " + serverSocket.getLocalSocketAddress());
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> handle(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) LOG.log(Level.WARNING, "Accept failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections
+     * @.pre true
+     * @.post the node does not serve anymore
+     * @throws IOException if closing the socket fails
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * Serves the requests of a single connection until it is closed
+     */
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                try {
+                    respond(op, in, out);
+                } catch (RuntimeException e) {
+                    out.writeByte(ShardProtocol.ERROR);
+                    ShardProtocol.writeBody(out, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Connection closed", e);
+        }
+    }
+
+    private void respond(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case ShardProtocol.PUT: {
+                int id = in.readInt();
+                String text = new String(ShardProtocol.readBody(in), StandardCharsets.UTF_8);
+                // keeps the catalog wide id, without taking one from this process
+                Recipe recipe = RecipeText.parseDetached(new StringReader(text), id);
+                if (recipes.put(id, recipe) != null) cache.invalidate(id);
+                ok(out, new byte[0]);
+                break;
+            }
+            case ShardProtocol.TEXT: {
+                Recipe recipe = recipes.get(in.readInt());
+                if (recipe == null) {
+                    notFound(out);
+                } else {
+                    StringBuilder str = new StringBuilder();
+                    RecipeText.format(recipe, str);
+                    ok(out, str.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                break;
+            }
+            case ShardProtocol.VARIANT: {
+                Recipe recipe = recipes.get(in.readInt());
+                long seed = in.readLong();
+                if (recipe == null) notFound(out);
+                else ok(out, cache.get(recipe, seed));
+                break;
+            }
+            case ShardProtocol.VARIANTS: {
+                int count = in.readInt();
+                if (count < 0 || count > ShardProtocol.MAX_BATCH) throw new IOException("Bad batch size " + count);
+                int[] ids = new int[count];
+                for (int i = 0; i < count; i++) ids[i] = in.readInt();
+                long seed = in.readLong();
+                // rendered before answering, so a failure is still answered with ERROR
+                List<Integer> found = new ArrayList<>(count);
+                List<byte[]> variants = new ArrayList<>(count);
+                for (int id : ids) {
+                    Recipe recipe = recipes.get(id);
+                    if (recipe == null) continue;
+                    found.add(id);
+                    variants.add(cache.get(recipe, seed));
+                }
+                out.writeByte(ShardProtocol.OK);
+                out.writeInt(found.size());
+                for (int i = 0; i < found.size(); i++) {
+                    out.writeInt(found.get(i));
+                    ShardProtocol.writeBody(out, variants.get(i));
+                }
+                break;
+            }
+            case ShardProtocol.DELETE: {
+                int id = in.readInt();
+                if (recipes.remove(id) == null) {
+                    notFound(out);
+                } else {
+                    cache.invalidate(id);
+                    ok(out, new byte[0]);
+                }
+                break;
+            }
+            case ShardProtocol.IDS: {
+                List<Integer> ids = new ArrayList<>(recipes.keySet());
+                out.writeByte(ShardProtocol.OK);
+                out.writeInt(ids.size());
+                for (int id : ids) out.writeInt(id);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    private static void ok(DataOutputStream out, byte[] body) throws IOException {
+        out.writeByte(ShardProtocol.OK);
+        ShardProtocol.writeBody(out, body);
+    }
+
+    private static void notFound(DataOutputStream out) throws IOException {
+        out.writeByte(ShardProtocol.NOT_FOUND);
+        ShardProtocol.writeBody(out, new byte[0]);
+    }
+
+    /**
+     * Starts a node
+     * @param args port and optionally the cache size in bytes
+     */
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        long cacheBytes = args.length > 1 ? Long.parseLong(args[1]) : 64L << 20;
+        new ShardNode(port, cacheBytes).serve();
+    }
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(ShardNode.class.getName());
+}
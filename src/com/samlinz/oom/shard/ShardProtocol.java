@@ -0,0 +1,56 @@
+package com.samlinz.oom.shard;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Wire format between ShardedCatalog and ShardNode
+ *
+ * A request is an operation byte followed by its arguments, a response is
+ * a status byte followed by a length-prefixed body. Strings are sent as
+ * length-prefixed UTF-8.
+ *
+ * PUT    id, recipe text -> OK
+ * TEXT   id              -> recipe text
+ * VARIANT id, seed       -> rendered variant
+ * DELETE id              -> OK or NOT_FOUND
+ * IDS                    -> int count, ids
+ * VARIANTS count, ids, seed -> int count, then id and rendered variant of each found recipe
+ *
+ * @author Samuel Lindqvist
+ */
+class ShardProtocol {
+
+    static final byte PUT = 1;
+    static final byte TEXT = 2;
+    static final byte VARIANT = 3;
+    static final byte DELETE = 4;
+    static final byte IDS = 5;
+    static final byte VARIANTS = 6;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte ERROR = 2;
+
+    // largest accepted body, anything larger is treated as a broken stream
+    static final int MAX_BODY = 1 << 26;
+    // largest amount of ids in one VARIANTS request
+    static final int MAX_BATCH = 1024;
+
+    private ShardProtocol() {
+    }
+
+    static void writeBody(DataOutputStream out, byte[] body) throws IOException {
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    static byte[] readBody(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_BODY) throw new IOException("Bad body length " + length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+}
@@ -0,0 +1,393 @@
+package com.samlinz.oom.shard;
+
+import com.samlinz.oom.recipe.Recipe;
+import com.samlinz.oom.recipe.RecipeText;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Recipe catalog partitioned over several ShardNode processes
+ *
+ * Recipes are assigned to nodes by their id with a consistent hash ring. Single
+ * recipe requests go to the owning node, batch requests are grouped by node, sent to
+ * all of them concurrently and the results gathered. A node can be added while the
+ * catalog is in use, only the recipes which the new node takes over are moved to it.
+ *
+ * Nodes are addressed as "host:port".
+ *
+ * @author Samuel Lindqvist
+ */
+public class ShardedCatalog implements AutoCloseable {
+
+    // ring points per node
+    private static final int POINTS_PER_NODE = 128;
+
+    private final HashRing ring = new HashRing(POINTS_PER_NODE);
+    // routing changes only while nodes are added or removed
+    private final ReadWriteLock routing = new ReentrantReadWriteLock();
+    private final Map<String, NodeClient> clients = new ConcurrentHashMap<>();
+    private final ExecutorService scatter = Executors.newCachedThreadPool((r) -> {
+        Thread t = new Thread(r, "shard-scatter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor
+     * @.pre nodes != null
+     * @.post the catalog routes to the given nodes
+     * @param nodes addresses of the initial nodes, which are expected to be empty
+     */
+    public ShardedCatalog(List<String> nodes) {
+        for (String node : nodes) {
+            ring.addNode(node);
+            clients.put(node, new NodeClient(node));
+        }
+    }
+
+    /**
+     * Stores the recipe in the node which owns its id
+     * @.pre recipe != null & the recipe's stage order respects its dependencies
+     * @.post get(recipe.getId()) returns an equal recipe
+     * @param recipe recipe to store
+     * @throws IOException if the node can not be reached
+     */
+    public void put(Recipe recipe) throws IOException {
+        routing.readLock().lock();
+        try {
+            owner(recipe.getId()).put(recipe.getId(), text(recipe));
+        } finally {
+            routing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Fetches a copy of the recipe from its node
+     * @.pre true
+     * @.post RESULT == null if there is no such recipe
+     * @param id recipe id
+     * @return the recipe, or null
+     * @throws IOException if the node can not be reached
+     */
+    public Recipe get(int id) throws IOException {
+        String text;
+        routing.readLock().lock();
+        try {
+            text = owner(id).text(id);
+        } finally {
+            routing.readLock().unlock();
+        }
+        if (text == null) return null;
+        // a copy, the local factory, journal and catalog do not see it
+        return RecipeText.parseDetached(new StringReader(text), id);
+    }
+
+    /**
+     * Returns a shuffled variant of the recipe, shuffled and rendered by its node
+     * @.pre true
+     * @.post RESULT == null if there is no such recipe
+     * @param id recipe id
+     * @param seed seed of the variant
+     * @return the rendered variant, as RecipeUtils.renderVariant() gives it, or null
+     * @throws IOException if the node can not be reached
+     */
+    public byte[] variant(int id, long seed) throws IOException {
+        routing.readLock().lock();
+        try {
+            return owner(id).variant(id, seed);
+        } finally {
+            routing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns shuffled variants of many recipes
+     * The ids are grouped by node and every node handles its share concurrently,
+     * in batches of up to ShardProtocol.MAX_BATCH ids per request
+     * @.pre ids != null
+     * @.post RESULT contains an entry for each existing recipe of ids
+     * @param ids recipe ids
+     * @param seed seed of the variants
+     * @return rendered variants by recipe id
+     * @throws IOException if some node can not be reached
+     */
+    public Map<Integer, byte[]> variants(List<Integer> ids, long seed) throws IOException {
+        routing.readLock().lock();
+        try {
+            Map<NodeClient, List<Integer>> byNode = new HashMap<>();
+            for (int id : ids) {
+                byNode.computeIfAbsent(owner(id), (n) -> new ArrayList<>()).add(id);
+            }
+            List<Future<Map<Integer, byte[]>>> parts = new ArrayList<>();
+            for (Map.Entry<NodeClient, List<Integer>> e : byNode.entrySet()) {
+                parts.add(scatter.submit(() -> {
+                    Map<Integer, byte[]> part = new HashMap<>();
+                    List<Integer> share = e.getValue();
+                    for (int from = 0; from < share.size(); from += ShardProtocol.MAX_BATCH) {
+                        int to = Math.min(from + ShardProtocol.MAX_BATCH, share.size());
+                        e.getKey().variants(share.subList(from, to), seed, part);
+                    }
+                    return part;
+                }));
+            }
+            Map<Integer, byte[]> result = new HashMap<>();
+            for (Future<Map<Integer, byte[]>> part : parts) {
+                result.putAll(part.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            routing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a node and moves to it the recipes it takes over from the other nodes
+     * Requests wait while the recipes are moved
+     * The recipes are first copied to the new node and deleted from the old ones only
+     * after every copy has succeeded. If copying fails, the copies are deleted and the
+     * catalog keeps routing to the old nodes as if the node had never been added.
+     * @.pre node is a running, empty ShardNode
+     * @.post every recipe is stored in its owner according to the new ring
+     * @param node address of the node
+     * @return amount of moved recipes
+     * @throws IOException if some node can not be reached, the node is not added then
+     */
+    public int addNode(String node) throws IOException {
+        routing.writeLock().lock();
+        try {
+            NodeClient added = new NodeClient(node);
+            ring.addNode(node);
+            Map<NodeClient, List<Integer>> copied = new HashMap<>();
+            try {
+                for (NodeClient source : clients.values()) {
+                    for (int id : source.ids()) {
+                        if (!ring.ownerOf(id).equals(node)) continue;
+                        String text = source.text(id);
+                        if (text == null) continue;
+                        added.put(id, text);
+                        copied.computeIfAbsent(source, (n) -> new ArrayList<>()).add(id);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                rollback(node, added, copied, e);
+                throw e;
+            }
+
+            clients.put(node, added);
+            int moved = 0;
+            for (Map.Entry<NodeClient, List<Integer>> e : copied.entrySet()) {
+                for (int id : e.getValue()) {
+                    try {
+                        e.getKey().delete(id);
+                    } catch (IOException ex) {
+                        // the new node already serves the recipe, the old copy is only unused
+                        LOG.warning("Could not delete moved recipe " + id + " from " + e.getKey().address);
+                    }
+                    moved++;
+                }
+            }
+            LOG.info("Added shard " + node + ", moved " + moved + " recipes");
+            return moved;
+        } finally {
+            routing.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes a node which could not be filled off the ring and deletes the copies made to it
+     */
+    private void rollback(String node, NodeClient added, Map<NodeClient, List<Integer>> copied, Exception cause) {
+        ring.removeNode(node);
+        try {
+            for (List<Integer> ids : copied.values()) {
+                for (int id : ids) added.delete(id);
+            }
+        } catch (IOException e) {
+            // the node is not used, the copies left there do no harm
+            cause.addSuppressed(e);
+        }
+        added.close();
+        LOG.warning("Adding shard " + node + " failed, routing to the old nodes: " + cause);
+    }
+
+    /**
+     * Closes the connections to the nodes, the nodes keep running
+     * @.pre true
+     * @.post the catalog can not be used anymore
+     */
+    @Override
+    public void close() {
+        for (NodeClient c : clients.values()) c.close();
+        scatter.shutdownNow();
+    }
+
+    private NodeClient owner(int id) {
+        return clients.get(ring.ownerOf(id));
+    }
+
+    private static String text(Recipe recipe) {
+        StringBuilder str = new StringBuilder();
+        RecipeText.format(recipe, str);
+        return str.toString();
+    }
+
+    /**
+     * Connection to a single node
+     * Requests on the same connection are sent one at a time
+     */
+    private static class NodeClient {
+
+        private final String address;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        NodeClient(String address) {
+            this.address = address;
+        }
+
+        synchronized void put(int id, String text) throws IOException {
+            connect();
+            out.writeByte(ShardProtocol.PUT);
+            out.writeInt(id);
+            ShardProtocol.writeBody(out, text.getBytes(StandardCharsets.UTF_8));
+            response();
+        }
+
+        synchronized String text(int id) throws IOException {
+            connect();
+            out.writeByte(ShardProtocol.TEXT);
+            out.writeInt(id);
+            byte[] body = response();
+            return body == null ? null : new String(body, StandardCharsets.UTF_8);
+        }
+
+        synchronized byte[] variant(int id, long seed) throws IOException {
+            connect();
+            out.writeByte(ShardProtocol.VARIANT);
+            out.writeInt(id);
+            out.writeLong(seed);
+            return response();
+        }
+
+        /**
+         * Fetches the variants of a batch of ids in one request, adding the found ones to result
+         */
+        synchronized void variants(List<Integer> ids, long seed, Map<Integer, byte[]> result) throws IOException {
+            connect();
+            out.writeByte(ShardProtocol.VARIANTS);
+            out.writeInt(ids.size());
+            for (int id : ids) out.writeInt(id);
+            out.writeLong(seed);
+            out.flush();
+            try {
+                byte status = in.readByte();
+                if (status != ShardProtocol.OK)
+                    throw new IOException(address + ": " + new String(ShardProtocol.readBody(in), StandardCharsets.UTF_8));
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    int id = in.readInt();
+                    result.put(id, ShardProtocol.readBody(in));
+                }
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+        }
+
+        synchronized void delete(int id) throws IOException {
+            connect();
+            out.writeByte(ShardProtocol.DELETE);
+            out.writeInt(id);
+            response();
+        }
+
+        synchronized List<Integer> ids() throws IOException {
+            connect();
+            out.writeByte(ShardProtocol.IDS);
+            out.flush();
+            try {
+                if (in.readByte() != ShardProtocol.OK) throw new IOException("Listing " + address + " failed");
+                int count = in.readInt();
+                List<Integer> ids = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) ids.add(in.readInt());
+                return ids;
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+        }
+
+        /**
+         * Flushes the request and reads the response
+         * @return the body, null if the recipe was not found
+         */
+        private byte[] response() throws IOException {
+            try {
+                out.flush();
+                byte status = in.readByte();
+                byte[] body = ShardProtocol.readBody(in);
+                if (status == ShardProtocol.NOT_FOUND) return null;
+                if (status != ShardProtocol.OK)
+                    throw new IOException(address + ": " + new String(body, StandardCharsets.UTF_8));
+                return body;
+            } catch (IOException e) {
+                // the stream may be out of sync, start over on the next request
+                disconnect();
+                throw e;
+            }
+        }
+
+        private void connect() throws IOException {
+            if (socket != null) return;
+            int colon = address.lastIndexOf(':');
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            s.setTcpNoDelay(true);
+            socket = s;
+            in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        }
+
+        private void disconnect() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                // already broken
+            }
+            socket = null;
+        }
+
+        synchronized void close() {
+            disconnect();
+        }
+    }
+
+    // class logger
+    private static Logger LOG = Logger.getLogger(ShardedCatalog.class.getName());
+}
@@ -1,8 +1,13 @@
 package com.samlinz.oom.stage;
 
+import com.samlinz.oom.text.SymbolTable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.logging.Logger;
 
 /**
  * A stage in cooking process
@@ -10,18 +15,29 @@ import java.util.logging.Logger;
  * References to parents and children for linking to other stages
  * A description to tell the customer what the IRL stage consists of
  *
+ * A frozen stage can not be changed any more, its methods which would change it throw
+ * IllegalStateException. Stages shared by many recipes are frozen.
+ *
  * @author Samuel Lindqvist
  */
 public class Stage {
 
+    // shown for stages which have not been given a description
+    private static final String NO_DESCRIPTION = "no description set";
+
     // identification number, must be unique or funny stuff happens
     private int id;
     // stages which are dependents of this stage
-    private List<Stage> children;
+    // shared empty list until the first child is added
+    private List<Stage> children = Collections.emptyList();
     // the stage's dependents, must be completed before this stage
-    private List<Stage> parents;
-    // stage description
-    private String description;
+    // shared empty list until the first parent is added
+    private List<Stage> parents = Collections.emptyList();
+    // stage description, a String, or a SymbolTable.Packed when compressed
+    // null until set
+    private Object description;
+    // read-only, set once before the stage is published
+    private boolean frozen;
 
     /**
      * Constructor, package-private
@@ -30,12 +46,7 @@ public class Stage {
      * @.post this.getChildren().size() == 0 & this.getParents().size() == 0
      */
     Stage() {
-        children = new ArrayList<>();
         id = -1;
-        parents = new ArrayList<>();
-        description = "no description set";
-
-        LOG.fine("Empty Stage object initialized");
     }
 
     /**
@@ -47,7 +58,8 @@ public class Stage {
      * @param stage reference to child
      */
     public void addChild(Stage stage) {
-        children.add(stage);
+        checkNotFrozen();
+        children = append(children, stage);
     }
 
     /**
@@ -57,12 +69,75 @@ public class Stage {
      * @param stage a reference to parent
      */
     public void addParent(Stage stage) {
-        parents.add(stage);
+        checkNotFrozen();
+        parents = append(parents, stage);
     }
 
     /**
+     * Appends a stage to a link list, replacing the shared empty list
+     * or a trimmed list with a growable one first
+     * @.pre list != null & stage != null
+     * @.post RESULT.size() == list.size() + 1
+     * @param list current link list
+     * @param stage stage to append
+     * @return the list which contains the appended stage
+     */
+    private static List<Stage> append(List<Stage> list, Stage stage) {
+        if (!(list instanceof ArrayList)) {
+            List<Stage> grown = new ArrayList<>(list.size() + 2);
+            grown.addAll(list);
+            list = grown;
+        }
+        list.add(stage);
+        return list;
+    }
+
+    /**
+     * Right-sizes the link lists once the stage graph is complete
+     * Empty lists are replaced with the shared empty list and single links
+     * with a singleton list, stages can still be linked afterwards
+     * Lists which are trimmed already are not written again, so trimming a stage which
+     * is shared between recipes does not change it
+     * @.pre true
+     * @.post getChildren() and getParents() contain the same stages as before
+     */
+    void trim() {
+        // a frozen stage was trimmed before it was frozen
+        if (frozen) return;
+        List<Stage> c = trimmed(children);
+        if (c != children) children = c;
+        List<Stage> p = trimmed(parents);
+        if (p != parents) parents = p;
+    }
+
+    /**
+     * Replaces both link lists at once, used when a whole stage graph is built in bulk
+     * @.pre parents != null & children != null
+     * @.post getParents() == parents & getChildren() == children
+     */
+    void setLinks(List<Stage> parents, List<Stage> children) {
+        checkNotFrozen();
+        this.parents = parents;
+        this.children = children;
+    }
+
+    private static List<Stage> trimmed(List<Stage> list) {
+        switch (list.size()) {
+            case 0:
+                return Collections.emptyList();
+            case 1:
+                return list instanceof ArrayList ? Collections.singletonList(list.get(0)) : list;
+            default:
+                if (list instanceof ArrayList) ((ArrayList<Stage>) list).trimToSize();
+                return list;
+        }
+    }
+
+    /**
+     * The list is read-only: empty and single links are held in the shared empty list
+     * and singleton lists, which throw UnsupportedOperationException when modified
      * @.pre children are set with addChild
-     * @.post RESULT != null
+     * @.post RESULT != null, the list is not to be modified directly, use addChild()
      * @return list of children
      */
     public List<Stage> getChildren() {
@@ -70,9 +145,10 @@ public class Stage {
     }
 
     /**
+     * The list is read-only, as with getChildren()
      * @.pre parents are set with addParent
-     * @.post RESULT != null
-     * @return list of children
+     * @.post RESULT != null, the list is not to be modified directly, use addParent()
+     * @return list of parents
      */
     public List<Stage> getParents() {
         return parents;
@@ -92,9 +168,32 @@ public class Stage {
      * @.post getId() == id
      */
     void setId(int id) {
+        checkNotFrozen();
         this.id = id;
     }
 
+    /**
+     * Makes the stage read-only, must be called before other threads can see the stage
+     * @.pre the stage is linked and trimmed
+     * @.post isFrozen()
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * @.pre true
+     * @.post true
+     * @return true if the stage can not be changed
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) throw new IllegalStateException("Stage " + id + " is shared and can not be changed");
+    }
+
     /**
      * @.pre true
      * @.post true
@@ -128,11 +227,40 @@ public class Stage {
 
     /**
      * @.pre true
-     * @.post RESULT == this.description
+     * @.post RESULT == this.description, or a placeholder if it has not been set
      * @return stage textual description
      */
     public String getDescription() {
-        return description;
+        Object d = description;
+        if (d instanceof SymbolTable.Packed) return ((SymbolTable.Packed) d).decode();
+        return d != null ? (String) d : NO_DESCRIPTION;
+    }
+
+    /**
+     * Writes the description in UTF-8 to the stream
+     * A compressed description is decoded straight into the stream
+     * @.pre out != null
+     * @.post the description has been written to out
+     * @param out stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeDescription(OutputStream out) throws IOException {
+        Object d = description;
+        if (d instanceof SymbolTable.Packed) ((SymbolTable.Packed) d).writeTo(out);
+        else out.write(getDescription().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replaces the description with its compressed form
+     * Must not be called while other threads read the description
+     * @.pre table != null
+     * @.post getDescription() returns the same text as before
+     * @param table symbol table to compress with
+     */
+    public void compressDescription(SymbolTable table) {
+        checkNotFrozen();
+        Object d = description;
+        if (d instanceof String) description = table.pack((String) d);
     }
 
     /**
@@ -143,10 +271,7 @@ public class Stage {
      * @param description The stage textual description
      */
     public void setDescription(String description) {
+        checkNotFrozen();
         this.description = description;
     }
-
-    // Logger
-    private Logger LOG = Logger.getLogger(Stage.class.getName());
-
 }
@@ -1,8 +1,15 @@
 package com.samlinz.oom.stage;
 
+import com.samlinz.oom.metrics.LatencyHistogram;
+import com.samlinz.oom.metrics.MetricsRegistry;
+import com.samlinz.oom.metrics.RecipeEvents;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -40,17 +47,136 @@ public class StageFactory {
      * @param stages list of all stages
      */
     public static void fixChildren(List<Stage> stages) {
-        // go through each stage and link them to their children
-        for(Stage s : stages) {
-            for(Stage c : stages) {
-                // if they are not the same
-                if(s != c) {
-                    if(c.getParents().contains(s)) {
-                        s.addChild(c);
-                    }
+        RecipeEvents.FixChildren event = new RecipeEvents.FixChildren();
+        event.begin();
+        long start = System.nanoTime();
+        // link each stage to its parents, in the order of the stages
+        // so that the children of a stage are in the same order as before
+        Set<Stage> linked = Collections.newSetFromMap(new IdentityHashMap<>(stages.size() * 2));
+        linked.addAll(stages);
+        for(Stage c : stages) {
+            for(Stage s : c.getParents()) {
+                // finishing again must not link the same child twice
+                if(s != c && linked.contains(s) && !s.getChildren().contains(c)) {
+                    s.addChild(c);
                 }
             }
         }
+        // the graph is complete, drop the spare capacity
+        for(Stage s : stages) {
+            s.trim();
+        }
+        FIX_CHILDREN_TIME.record(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stages = stages.size();
+            event.edges = countEdges(stages);
+            event.commit();
+        }
+    }
+
+    /**
+     * Counts the dependency links between the given stages
+     * @.pre stages != null
+     * @.post RESULT == SUM(s : stages; s.getParents().size())
+     * @param stages list of stages
+     * @return amount of parent links
+     */
+    public static int countEdges(List<Stage> stages) {
+        int edges = 0;
+        for (Stage s : stages) {
+            edges += s.getParents().size();
+        }
+        return edges;
+    }
+
+    /**
+     * Replaces parents of a stage, keeping their order
+     * Used when a recipe stops sharing stages and gives the stage its own copies
+     * @.pre stage != null & replacements != null
+     * @.post FORALL(p : PRE.stage.getParents(); replacements.get(p) is a parent instead of p)
+     * @param stage stage whose parents are replaced
+     * @param replacements new parents by the old ones
+     */
+    public static void replaceParents(Stage stage, Map<Stage, Stage> replacements) {
+        List<Stage> parents = new ArrayList<>(stage.getParents());
+        boolean replaced = false;
+        for (int i = 0; i < parents.size(); i++) {
+            Stage r = replacements.get(parents.get(i));
+            if (r != null) {
+                parents.set(i, r);
+                replaced = true;
+            }
+        }
+        if (replaced) stage.setLinks(parents, stage.getChildren());
+    }
+
+    /**
+     * Builds a whole linked stage graph at once
+     * Dependencies are given in compressed rows: the dependencies of stage i are the
+     * stages at indices depTargets[depOffsets[i]] ... depTargets[depOffsets[i + 1] - 1]
+     * Parent and child lists are allocated at their final size, so the stages need
+     * no fixChildren() afterwards
+     * @.pre 0 <= count <= ids.length & descriptions.length >= count &
+     *          depOffsets.length > count & 0 <= every used depTargets value < count &
+     *          work.length >= count
+     * @.post RESULT.length == count & FORALL(s : RESULT; children and parents are linked)
+     * @param count amount of stages
+     * @param ids stage identification numbers
+     * @param descriptions stage descriptions
+     * @param depOffsets start of each stage's dependencies in depTargets
+     * @param depTargets indices of the dependencies
+     * @param work scratch space, contents are overwritten
+     * @return the stages in the given order
+     */
+    public static Stage[] buildStages(int count, int[] ids, String[] descriptions,
+                                      int[] depOffsets, int[] depTargets, int[] work) {
+        Stage[] built = new Stage[count];
+        for (int i = 0; i < count; i++) {
+            built[i] = getStage(ids[i], descriptions[i]);
+        }
+        // count the children of every stage
+        for (int i = 0; i < count; i++) work[i] = 0;
+        for (int e = depOffsets[0]; e < depOffsets[count]; e++) work[depTargets[e]]++;
+
+        List<Stage>[] children = newLists(count, work);
+        for (int i = 0; i < count; i++) {
+            int first = depOffsets[i];
+            int size = depOffsets[i + 1] - first;
+            List<Stage> parents;
+            if (size == 0) {
+                parents = Collections.emptyList();
+            } else if (size == 1) {
+                parents = Collections.singletonList(built[depTargets[first]]);
+            } else {
+                parents = new ArrayList<>(size);
+                for (int e = first; e < first + size; e++) parents.add(built[depTargets[e]]);
+            }
+            for (int e = first; e < first + size; e++) {
+                int p = depTargets[e];
+                if (work[p] == 1) children[p] = Collections.singletonList(built[i]);
+                else children[p].add(built[i]);
+            }
+            built[i].setLinks(parents, Collections.<Stage>emptyList());
+        }
+        // dependencies may point forward, so the children are complete only now
+        for (int i = 0; i < count; i++) {
+            built[i].setLinks(built[i].getParents(), children[i]);
+        }
+        return built;
+    }
+
+    /**
+     * Allocates the child lists at their final sizes
+     * Stages without children share the empty list, single children are set as singletons later
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<Stage>[] newLists(int count, int[] sizes) {
+        List<Stage>[] lists = new List[count];
+        for (int i = 0; i < count; i++) {
+            lists[i] = sizes[i] < 2 ? Collections.<Stage>emptyList() : new ArrayList<>(sizes[i]);
+        }
+        return lists;
     }
 
     /**
@@ -67,4 +193,8 @@ public class StageFactory {
         newStage.setDescription(description);
         return newStage;
     }
+
+    // duration of fixChildren()
+    private static final LatencyHistogram FIX_CHILDREN_TIME =
+            MetricsRegistry.getDefault().histogram("stage.fixChildren");
 }
@@ -0,0 +1,366 @@
+package com.samlinz.oom.text;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static symbol table for compressing short texts such as stage and ingredient descriptions
+ *
+ * Works in the manner of FSST: the table maps up to 255 one byte codes to symbols of
+ * one to eight bytes, which are picked from a sample of the texts to be compressed.
+ * A text is compressed by replacing the longest matching symbol at each position with its
+ * code, bytes without a symbol are written as an escape code followed by the byte.
+ *
+ * Every text is compressed on its own, so a single text can be decoded without touching
+ * the others. Decoding only copies at most eight bytes per code, with no lookups besides the
+ * table, and can write straight to a stream.
+ *
+ * Tables are immutable and can be shared between threads.
+ *
+ * pack() gives a Packed text, which keeps the codes together with their table, so the
+ * objects which hold texts need only one field for either the text or the Packed one.
+ * There is no limit on the amount of tables, each lives as long as some text uses it.
+ *
+ * @author Samuel Lindqvist
+ */
+public final class SymbolTable {
+
+    // longest symbol
+    public static final int MAX_SYMBOL = 8;
+    // code of an escaped byte
+    private static final int ESCAPE = 255;
+    // rounds of training, each round learns from the previous table
+    private static final int ROUNDS = 5;
+    // at most this many bytes of the sample are used for training
+    private static final int SAMPLE_BYTES = 1 << 20;
+
+    // scratch space of writeTo(), per thread
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    // symbol of code c is symbols[c * MAX_SYMBOL] ... symbols[c * MAX_SYMBOL + lengths[c] - 1]
+    private final byte[] symbols;
+    private final byte[] lengths;
+    private final int count;
+    // codes of the symbols by their first byte, longest first
+    private final int[][] byFirst;
+
+    private SymbolTable(List<byte[]> symbolList) {
+        count = symbolList.size();
+        symbols = new byte[count * MAX_SYMBOL];
+        lengths = new byte[count];
+        int[] firsts = new int[256];
+        for (int c = 0; c < count; c++) {
+            byte[] s = symbolList.get(c);
+            System.arraycopy(s, 0, symbols, c * MAX_SYMBOL, s.length);
+            lengths[c] = (byte) s.length;
+            firsts[s[0] & 0xff]++;
+        }
+        byFirst = new int[256][];
+        for (int b = 0; b < 256; b++) byFirst[b] = new int[firsts[b]];
+        // insert the longest symbols first so that the matching prefers them
+        int[] fill = new int[256];
+        for (int len = MAX_SYMBOL; len > 0; len--) {
+            for (int c = 0; c < count; c++) {
+                if (lengths[c] != len) continue;
+                int b = symbols[c * MAX_SYMBOL] & 0xff;
+                byFirst[b][fill[b]++] = c;
+            }
+        }
+    }
+
+    /**
+     * Builds a table for compressing texts which resemble the sample
+     * @.pre sample != null
+     * @.post RESULT.size() <= 255
+     * @param sample texts to learn the symbols from
+     * @return the trained table
+     */
+    public static SymbolTable train(Iterable<String> sample) {
+        List<byte[]> texts = new ArrayList<>();
+        int total = 0;
+        for (String s : sample) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (total + bytes.length > SAMPLE_BYTES) break;
+            texts.add(bytes);
+            total += bytes.length;
+        }
+
+        SymbolTable table = new SymbolTable(new ArrayList<>());
+        for (int round = 0; round < ROUNDS; round++) {
+            // count the symbols the current table uses, and the pairs of consecutive ones
+            // which would make longer symbols
+            Map<String, int[]> counts = new HashMap<>();
+            for (byte[] text : texts) {
+                int pos = 0;
+                int prevStart = -1;
+                int prevLen = 0;
+                while (pos < text.length) {
+                    int code = table.match(text, pos);
+                    int len = code < 0 ? 1 : table.lengths[code];
+                    count(counts, text, pos, len);
+                    if (prevStart >= 0 && prevLen + len <= MAX_SYMBOL) count(counts, text, prevStart, prevLen + len);
+                    prevStart = pos;
+                    prevLen = len;
+                    pos += len;
+                }
+            }
+            // keep the candidates which save the most bytes
+            List<Map.Entry<String, int[]>> candidates = new ArrayList<>(counts.entrySet());
+            candidates.sort((a, b) -> Long.compare(gain(b), gain(a)));
+            List<byte[]> chosen = new ArrayList<>();
+            for (int i = 0; i < candidates.size() && chosen.size() < ESCAPE; i++) {
+                chosen.add(candidates.get(i).getKey().getBytes(StandardCharsets.ISO_8859_1));
+            }
+            table = new SymbolTable(chosen);
+        }
+        return table;
+    }
+
+    private static void count(Map<String, int[]> counts, byte[] text, int start, int len) {
+        // ISO-8859-1 maps every byte to one char, so the key keeps the exact bytes
+        String key = new String(text, start, len, StandardCharsets.ISO_8859_1);
+        int[] c = counts.get(key);
+        if (c == null) counts.put(key, new int[] { 1 });
+        else c[0]++;
+    }
+
+    private static long gain(Map.Entry<String, int[]> candidate) {
+        int len = candidate.getKey().length();
+        // a single byte symbol saves only the escape code
+        return (long) candidate.getValue()[0] * (len == 1 ? 1 : len);
+    }
+
+    /**
+     * @.pre true
+     * @.post 0 <= RESULT <= 255
+     * @return amount of symbols
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Compresses a text
+     * @.pre text != null
+     * @.post decodeString(RESULT).equals(text)
+     * @param text text to compress
+     * @return the codes
+     */
+    public byte[] encode(String text) {
+        byte[] in = text.getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[in.length * 2];
+        int o = 0;
+        int pos = 0;
+        while (pos < in.length) {
+            int code = match(in, pos);
+            if (code < 0) {
+                out[o++] = (byte) ESCAPE;
+                out[o++] = in[pos++];
+            } else {
+                out[o++] = (byte) code;
+                pos += lengths[code];
+            }
+        }
+        return Arrays.copyOf(out, o);
+    }
+
+    /**
+     * Compresses a text together with the table, so it can be decoded on its own
+     * @.pre text != null
+     * @.post RESULT.decode().equals(text)
+     * @param text text to compress
+     * @return the compressed text
+     */
+    public Packed pack(String text) {
+        return new Packed(this, encode(text));
+    }
+
+    /**
+     * Finds the longest symbol at the position
+     * @return code of the symbol, -1 if none matches
+     */
+    private int match(byte[] in, int pos) {
+        for (int code : byFirst[in[pos] & 0xff]) {
+            int len = lengths[code];
+            if (pos + len > in.length) continue;
+            int base = code * MAX_SYMBOL;
+            int i = 1;
+            while (i < len && symbols[base + i] == in[pos + i]) i++;
+            if (i == len) return code;
+        }
+        return -1;
+    }
+
+    /**
+     * @.pre codes were given by encode() of this table
+     * @.post true
+     * @param codes compressed text
+     * @return length of the text in UTF-8 bytes
+     */
+    public int decodedLength(byte[] codes) {
+        int len = 0;
+        for (int i = 0; i < codes.length; i++) {
+            int code = codes[i] & 0xff;
+            if (code == ESCAPE) {
+                i++;
+                len++;
+            } else {
+                len += lengths[code];
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Decodes a text into the given array
+     * @.pre codes were given by encode() of this table & dst has room for the decoded text
+     * @.post the UTF-8 bytes of the text are at dst[offset] ...
+     * @param codes compressed text
+     * @param dst array to decode into
+     * @param offset position of the first byte
+     * @return position after the last decoded byte
+     */
+    public int decode(byte[] codes, byte[] dst, int offset) {
+        int o = offset;
+        for (int i = 0; i < codes.length; i++) {
+            int code = codes[i] & 0xff;
+            if (code == ESCAPE) {
+                dst[o++] = codes[++i];
+            } else {
+                int base = code * MAX_SYMBOL;
+                int len = lengths[code];
+                for (int k = 0; k < len; k++) dst[o + k] = symbols[base + k];
+                o += len;
+            }
+        }
+        return o;
+    }
+
+    /**
+     * @.pre codes were given by encode() of this table
+     * @.post RESULT.equals the text given to encode()
+     * @param codes compressed text
+     * @return the text
+     */
+    public String decodeString(byte[] codes) {
+        byte[] bytes = new byte[decodedLength(codes)];
+        decode(codes, bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a text straight into a stream, in UTF-8
+     * @.pre codes were given by encode() of this table & out != null
+     * @.post the text has been written to out
+     * @param codes compressed text
+     * @param out stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeTo(byte[] codes, OutputStream out) throws IOException {
+        byte[] chunk = CHUNK.get();
+        int o = 0;
+        for (int i = 0; i < codes.length; i++) {
+            if (o > chunk.length - MAX_SYMBOL) {
+                out.write(chunk, 0, o);
+                o = 0;
+            }
+            int code = codes[i] & 0xff;
+            if (code == ESCAPE) {
+                chunk[o++] = codes[++i];
+            } else {
+                int base = code * MAX_SYMBOL;
+                int len = lengths[code];
+                for (int k = 0; k < len; k++) chunk[o + k] = symbols[base + k];
+                o += len;
+            }
+        }
+        out.write(chunk, 0, o);
+    }
+
+    /**
+     * Serializes the table, so that compressed texts can be stored and read back
+     * @.pre true
+     * @.post fromBytes(RESULT) decodes the same as this table
+     * @return the table as bytes
+     */
+    public byte[] toBytes() {
+        int size = 1;
+        for (int c = 0; c < count; c++) size += 1 + lengths[c];
+        byte[] out = new byte[size];
+        out[0] = (byte) count;
+        int o = 1;
+        for (int c = 0; c < count; c++) {
+            out[o++] = lengths[c];
+            System.arraycopy(symbols, c * MAX_SYMBOL, out, o, lengths[c]);
+            o += lengths[c];
+        }
+        return out;
+    }
+
+    /**
+     * Reads a table serialized with toBytes()
+     * @.pre bytes != null
+     * @.post true
+     * @param bytes the serialized table
+     * @return the table
+     * @throws IllegalArgumentException if the bytes are not a valid table
+     */
+    public static SymbolTable fromBytes(byte[] bytes) {
+        try {
+            int n = bytes[0] & 0xff;
+            if (n > ESCAPE) throw new IllegalArgumentException("Too many symbols: " + n);
+            List<byte[]> list = new ArrayList<>(n);
+            int o = 1;
+            for (int c = 0; c < n; c++) {
+                int len = bytes[o++];
+                if (len < 1 || len > MAX_SYMBOL) throw new IllegalArgumentException("Invalid symbol length " + len);
+                if (o + len > bytes.length) throw new IllegalArgumentException("Truncated symbol table");
+                list.add(Arrays.copyOfRange(bytes, o, o + len));
+                o += len;
+            }
+            return new SymbolTable(list);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated symbol table", e);
+        }
+    }
+
+    /**
+     * Text compressed by pack(), immutable
+     */
+    public static final class Packed {
+
+        private final SymbolTable table;
+        private final byte[] codes;
+
+        private Packed(SymbolTable table, byte[] codes) {
+            this.table = table;
+            this.codes = codes;
+        }
+
+        /**
+         * @.pre true
+         * @.post RESULT.equals the text given to pack()
+         * @return the text
+         */
+        public String decode() {
+            return table.decodeString(codes);
+        }
+
+        /**
+         * Decodes the text straight into a stream, in UTF-8
+         * @.pre out != null
+         * @.post the text has been written to out
+         * @param out stream to write to
+         * @throws IOException if writing fails
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            table.writeTo(codes, out);
+        }
+    }
+}